@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import com.gitblit.IStoredSettings;
+import com.gitblit.manager.IRuntimeManager;
+
+/**
+ * Builds a {@link Jabber} instance for the benchmarks without a Gitblit
+ * server. The instance is never started, so nothing connects and messages
+ * stay on its queue until the benchmark takes them.
+ */
+class BenchmarkSupport {
+
+	/**
+	 * Returns settings for the benchmarks: no spool and a queue which drops
+	 * the oldest message instead of blocking the benchmark thread.
+	 */
+	static Map<String, String> settings() {
+		Map<String, String> settings = new HashMap<>();
+		settings.put(Plugin.SETTING_DEFAULT_ROOM, "gitblit@conference.example.com");
+		settings.put(Plugin.SETTING_USE_PROJECT_ROOMS, "true");
+		settings.put(Plugin.SETTING_SPOOL_ENABLED, "false");
+		settings.put(Plugin.SETTING_QUEUE_OVERFLOW, "drop-oldest");
+		settings.put(Plugin.SETTING_SETTINGS_REFRESH, "0");
+		settings.put("web.canonicalUrl", "https://git.example.com");
+		return settings;
+	}
+
+	static Jabber newJabber(Map<String, String> settings) {
+		final MemorySettings memory = new MemorySettings(settings);
+		IRuntimeManager runtimeManager = (IRuntimeManager) Proxy.newProxyInstance(
+				IRuntimeManager.class.getClassLoader(), new Class<?>[] { IRuntimeManager.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getSettings".equals(method.getName())) {
+							return memory;
+						}
+						if ("getFileOrFolder".equals(method.getName())) {
+							String path = memory.getString((String) args[0], null);
+							return path == null ? null : new File(path);
+						}
+						return null;
+					}
+				});
+		return new Jabber(runtimeManager);
+	}
+
+	/**
+	 * Creates a commit object which is not stored in any repository.
+	 */
+	static RevCommit newCommit(int n) {
+		String raw = "tree 4b825dc642cb6eb9a060e54bf8d69288fbee4904\n"
+				+ "author A U Thor <author@example.com> " + (1400000000 + n) + " +0000\n"
+				+ "committer A U Thor <author@example.com> " + (1400000000 + n) + " +0000\n"
+				+ "\n"
+				+ "Change number " + n + " of the benchmark push with a typical subject line\n"
+				+ "\n"
+				+ "And a body which is not displayed.\n";
+		return RevCommit.parse(raw.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static ObjectId newId(int n) {
+		return ObjectId.fromString(String.format("%040x", n));
+	}
+
+	static class MemorySettings extends IStoredSettings {
+
+		private final Properties properties;
+
+		MemorySettings(Map<String, String> settings) {
+			super(MemorySettings.class);
+			this.properties = new Properties();
+			this.properties.putAll(settings);
+		}
+
+		@Override
+		protected Properties read() {
+			return properties;
+		}
+
+		@Override
+		public boolean saveSettings() {
+			return false;
+		}
+
+		@Override
+		public boolean updateSettings(Map<String, String> updatedSettings) {
+			return false;
+		}
+	}
+}
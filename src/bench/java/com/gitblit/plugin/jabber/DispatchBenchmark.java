@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The path of a message from {@link Jabber#sendAsync(String, Message)} to
+ * the point where the sender hands it to the connection: queueing, room
+ * resolution, coalescing and rate limiting. The connection itself is left
+ * out, the benchmark takes the messages the sender would send.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	private Jabber jabber;
+
+	private Coalescer coalescer;
+
+	private RateLimiter limiter;
+
+	private List<Message> batch;
+
+	private long now;
+
+	@Setup
+	public void setup() {
+		jabber = BenchmarkSupport.newJabber(BenchmarkSupport.settings());
+		coalescer = new Coalescer(1000, 20);
+		// unlimited, the benchmark measures the bookkeeping
+		limiter = new RateLimiter(0, 1, 0, 1);
+
+		batch = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			batch.add(Message.create("A U Thor has pushed 1 commit to master in project " + i,
+					"<body xmlns=\"http://www.w3.org/1999/xhtml\"><b>A U Thor</b> has pushed 1 commit to master in project " + i + "</body>"));
+		}
+	}
+
+	@Benchmark
+	public Message dispatch() throws InterruptedException {
+		jabber.sendAsync("team/project.git", Message.text("A U Thor has created branch topic in team/project"));
+		Message message = jabber.queue.poll(0, TimeUnit.MILLISECONDS);
+		String room = jabber.getRoom(message);
+		limiter.add(room, message);
+		return limiter.poll(System.currentTimeMillis());
+	}
+
+	@Benchmark
+	public Message dispatchCoalesced() throws InterruptedException {
+		jabber.sendAsync("team/project.git", Message.text("A U Thor has created branch topic in team/project"));
+		Message message = jabber.queue.poll(0, TimeUnit.MILLISECONDS);
+		// every 20th message completes a batch
+		Message merged = coalescer.add(jabber.getRoom(message), message, now++);
+		if (merged != null) {
+			limiter.add(merged.getRoom(), merged);
+			return limiter.poll(System.currentTimeMillis());
+		}
+		return null;
+	}
+
+	@Benchmark
+	public Message combine() {
+		return Message.combine(batch);
+	}
+}
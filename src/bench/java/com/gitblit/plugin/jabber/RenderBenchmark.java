@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gitblit.plugin.jabber.PushEvent.RefChange;
+import com.gitblit.plugin.jabber.PushEvent.RefType;
+
+/**
+ * Formatting of push notifications, for a typical push of a few commits and
+ * a huge push whose commit count is capped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+	private static final int HUGE_PUSH = 5000;
+
+	private Jabber jabber;
+
+	private PushRenderer renderer;
+
+	private PushEvent event;
+
+	private RefChange change;
+
+	private CommitSummary typical;
+
+	private CommitSummary huge;
+
+	private List<RevCommit> hugeCommits;
+
+	@Setup
+	public void setup() {
+		Map<String, String> settings = BenchmarkSupport.settings();
+		settings.put(Plugin.SETTING_MAX_COMMITS, "5");
+		settings.put(Plugin.SETTING_COMMIT_COUNT_LIMIT, "1000");
+		jabber = BenchmarkSupport.newJabber(settings);
+		renderer = new PushRenderer(jabber);
+
+		ReceiveCommand cmd = new ReceiveCommand(BenchmarkSupport.newId(1), BenchmarkSupport.newId(2), "refs/heads/master");
+		change = new RefChange(cmd, RefType.BRANCH);
+		event = new PushEvent("team/project.git", "A U Thor", Collections.singletonList(change));
+
+		typical = new CommitSummary(5, 1000);
+		for (int i = 0; i < 3; i++) {
+			typical.add(BenchmarkSupport.newCommit(i));
+		}
+
+		hugeCommits = new ArrayList<>(HUGE_PUSH);
+		for (int i = 0; i < HUGE_PUSH; i++) {
+			hugeCommits.add(BenchmarkSupport.newCommit(i));
+		}
+		huge = summarize();
+	}
+
+	@Benchmark
+	public Message renderTypicalPush() throws InterruptedException {
+		renderer.sendUpdate(event, change, typical, true);
+		return jabber.queue.poll(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Benchmark
+	public Message renderHugePush() throws InterruptedException {
+		renderer.sendUpdate(event, change, huge, true);
+		return jabber.queue.poll(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Benchmark
+	public Message renderRewrite() throws InterruptedException {
+		renderer.sendUpdate(event, change, null, false);
+		return jabber.queue.poll(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Benchmark
+	public CommitSummary summarizeHugePush() {
+		return summarize();
+	}
+
+	private CommitSummary summarize() {
+		CommitSummary summary = new CommitSummary(5, 1000);
+		for (RevCommit commit : hugeCommits) {
+			if (!summary.add(commit)) {
+				break;
+			}
+		}
+		return summary;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolution of the rooms of a repository from project rooms and routing
+ * rules, for repositories seen before and for new ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+	@Param({ "10", "1000" })
+	int rules;
+
+	private JabberConfig config;
+
+	private RoomRouter router;
+
+	private String[] repositories;
+
+	private int next;
+
+	@Setup
+	public void setup() {
+		Map<String, String> settings = BenchmarkSupport.settings();
+		RoomRouter.Builder builder = new RoomRouter.Builder();
+		for (int i = 0; i < rules; i++) {
+			String room = "team" + i + "@conference.example.com";
+			if (i % 2 == 0) {
+				settings.put(String.format(Plugin.SETTING_PROJECT_ROOM, "team" + i + "/project.git"), room);
+				builder.add("team" + i + "/project.git", Integer.MAX_VALUE, Arrays.asList(room));
+			} else {
+				settings.put(String.format(Plugin.SETTING_ROUTE, "team" + i), "team" + i + "/* " + room);
+				builder.add("team" + i + "/*", 0, Arrays.asList(room));
+			}
+		}
+		config = BenchmarkSupport.newJabber(settings).getConfig();
+		router = builder.build("gitblit@conference.example.com");
+
+		repositories = new String[Math.max(rules, 100)];
+		for (int i = 0; i < repositories.length; i++) {
+			repositories[i] = "team" + (i % rules) + "/project.git";
+		}
+	}
+
+	@Benchmark
+	public List<String> routeKnownRepository() {
+		next = (next + 1) % repositories.length;
+		return config.getRooms(repositories[next]);
+	}
+
+	@Benchmark
+	public List<String> routeNewRepository() {
+		// a name the router has not cached yet
+		next++;
+		return router.route("team" + (next % rules) + "/repository" + next + ".git");
+	}
+}
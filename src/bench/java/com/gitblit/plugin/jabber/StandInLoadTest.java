@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the plugin against a {@link StandInServer} and reports throughput,
+ * reconnect time and backpressure, without network access.
+ *
+ * Usage: StandInLoadTest [messages] [rooms] [latency ms]
+ */
+public class StandInLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+		try (StandInServer server = new StandInServer("standin.local").start()) {
+			server.setLatency(latency);
+
+			Map<String, String> settings = BenchmarkSupport.settings();
+			settings.put(Plugin.SETTING_DOMAIN, server.getDomain());
+			settings.put(Plugin.SETTING_HOST, "127.0.0.1");
+			settings.put(Plugin.SETTING_PORT, String.valueOf(server.getPort()));
+			settings.put(Plugin.SETTING_SECURITY, "disabled");
+			settings.put(Plugin.SETTING_USERNAME, "gitblit");
+			settings.put(Plugin.SETTING_PASSWORD, "secret");
+			settings.put(Plugin.SETTING_DEFAULT_ROOM, "room0@conference." + server.getDomain());
+			settings.put(Plugin.SETTING_QUEUE_OVERFLOW, "block");
+			settings.put(Plugin.SETTING_COALESCE_WINDOW, "0");
+			settings.put(Plugin.SETTING_RATE_ROOM, "0");
+			settings.put(Plugin.SETTING_RATE_GLOBAL, "0");
+			settings.put(Plugin.SETTING_RECONNECT_MIN_DELAY, "100");
+			Jabber jabber = BenchmarkSupport.newJabber(settings).start();
+			try {
+				if (!awaitConnected(jabber, 10)) {
+					System.out.println("Failed to connect to the stand-in server");
+					return;
+				}
+
+				System.out.println(String.format("%d messages to %d rooms, %d ms server latency", messages, rooms, latency));
+				throughput(server, jabber, messages, rooms);
+				reconnect(server, jabber, messages, rooms);
+			} finally {
+				jabber.stop();
+			}
+		}
+	}
+
+	/**
+	 * Sends the messages as fast as the queue accepts them.
+	 */
+	private static void throughput(StandInServer server, Jabber jabber, int messages, int rooms) throws InterruptedException {
+		server.clearMessages();
+		long start = System.nanoTime();
+		int maxDepth = 0;
+		for (int i = 0; i < messages; i++) {
+			jabber.sendAsync(message(server, i, rooms));
+			maxDepth = Math.max(maxDepth, jabber.getQueueDepth());
+		}
+		boolean complete = server.awaitMessages(messages, 5, TimeUnit.MINUTES);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format("throughput: %d of %d messages in %d ms, %.0f messages/s, max queue depth %d",
+				server.getMessageCount(), messages, TimeUnit.NANOSECONDS.toMillis(elapsed),
+				server.getMessageCount() * 1e9 / elapsed, maxDepth));
+		if (!complete) {
+			System.out.println("throughput: messages are missing");
+		}
+	}
+
+	/**
+	 * Drops the connection in the middle of sending and checks that every
+	 * message arrives.
+	 */
+	private static void reconnect(StandInServer server, Jabber jabber, int messages, int rooms) throws InterruptedException {
+		server.clearMessages();
+		int logins = server.getLogins();
+		long dropped = 0;
+		for (int i = 0; i < messages; i++) {
+			if (i == messages / 2) {
+				server.disconnectAll();
+				dropped = System.nanoTime();
+			}
+			jabber.sendAsync(message(server, i, rooms));
+		}
+		long reconnected = 0;
+		while (server.getLogins() == logins && System.nanoTime() - dropped < TimeUnit.MINUTES.toNanos(1)) {
+			Thread.sleep(1);
+		}
+		if (server.getLogins() > logins) {
+			reconnected = System.nanoTime();
+		}
+		// messages which were not acknowledged before the drop arrive twice
+		server.awaitDistinctMessages(messages, 5, TimeUnit.MINUTES);
+
+		Set<String> bodies = new HashSet<>();
+		int duplicates = 0;
+		for (StandInServer.Stanza stanza : server.getMessages()) {
+			if (!bodies.add(stanza.body)) {
+				duplicates++;
+			}
+		}
+		System.out.println(String.format("reconnect: %s, %d of %d distinct messages delivered, %d duplicates",
+				reconnected == 0 ? "failed" : "after " + TimeUnit.NANOSECONDS.toMillis(reconnected - dropped) + " ms",
+				bodies.size(), messages, duplicates));
+	}
+
+	private static Message message(StandInServer server, int n, int rooms) {
+		return Message.text("message " + n).room("room" + (n % rooms) + "@conference." + server.getDomain());
+	}
+
+	private static boolean awaitConnected(Jabber jabber, int seconds) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		while (!jabber.isConnected()) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+}
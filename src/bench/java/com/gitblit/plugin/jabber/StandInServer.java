@@ -0,0 +1,674 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A minimal in-process XMPP server with multi-user chat, for load and
+ * integration tests without a network or a real Jabber server.
+ *
+ * The server speaks just enough XMPP for the plugin: plain-text streams
+ * (point the plugin at it with jabber.host, jabber.port and
+ * jabber.security = disabled), SASL PLAIN accepting any password, resource
+ * binding, and rooms which are created on join and echo each message to all
+ * occupants. All group chat messages are recorded.
+ *
+ * Latency, throttling, kicks and dropped connections can be injected to
+ * observe reconnects and backpressure.
+ */
+public class StandInServer implements Closeable {
+
+	/**
+	 * A recorded group chat message.
+	 */
+	public static class Stanza {
+
+		public final String room;
+
+		public final String nickname;
+
+		public final String id;
+
+		public final String body;
+
+		public final long received;
+
+		Stanza(String room, String nickname, String id, String body) {
+			this.room = room;
+			this.nickname = nickname;
+			this.id = id;
+			this.body = body;
+			this.received = System.nanoTime();
+		}
+	}
+
+	private static final String SASL = "urn:ietf:params:xml:ns:xmpp-sasl";
+
+	private static final String STANZAS = "urn:ietf:params:xml:ns:xmpp-stanzas";
+
+	private static final String MUC_USER = "http://jabber.org/protocol/muc#user";
+
+	private final String domain;
+
+	private final ServerSocket serverSocket;
+
+	private final List<Session> sessions;
+
+	private final ConcurrentMap<String, Map<String, Session>> rooms;
+
+	private final List<Stanza> messages;
+
+	private final AtomicInteger logins;
+
+	private final AtomicInteger throttled;
+
+	private volatile long latency;
+
+	private volatile int messageRate;
+
+	private volatile boolean refuseLogins;
+
+	private Thread acceptor;
+
+	/**
+	 * Binds the server to a free port on the loopback interface.
+	 *
+	 * @param domain the XMPP domain of the server
+	 * @throws IOException
+	 */
+	public StandInServer(String domain) throws IOException {
+		this.domain = domain;
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		this.sessions = new CopyOnWriteArrayList<>();
+		this.rooms = new ConcurrentHashMap<>();
+		this.messages = Collections.synchronizedList(new ArrayList<Stanza>());
+		this.logins = new AtomicInteger();
+		this.throttled = new AtomicInteger();
+	}
+
+	public synchronized StandInServer start() {
+		if (acceptor == null) {
+			acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					accept();
+				}
+			}, "standin-accept");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+		return this;
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		disconnectAll();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * Delays the handling of every stanza.
+	 *
+	 * @param millis
+	 */
+	public void setLatency(long millis) {
+		this.latency = millis;
+	}
+
+	/**
+	 * Rejects group chat messages over a rate per connection with a
+	 * resource-constraint error, as servers with traffic shaping do.
+	 *
+	 * @param perSecond messages per second, 0 for no limit
+	 */
+	public void setMessageRate(int perSecond) {
+		this.messageRate = perSecond;
+	}
+
+	/**
+	 * Closes new connections right away, as if the server were down.
+	 *
+	 * @param refuse
+	 */
+	public void setRefuseLogins(boolean refuse) {
+		this.refuseLogins = refuse;
+	}
+
+	/**
+	 * Drops all connections without closing the streams, like a network
+	 * failure.
+	 */
+	public void disconnectAll() {
+		for (Session session : sessions) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Kicks all occupants from a room.
+	 *
+	 * @param room
+	 */
+	public void kick(String room) {
+		Map<String, Session> occupants = rooms.get(room);
+		if (occupants == null) {
+			return;
+		}
+		synchronized (occupants) {
+			for (Map.Entry<String, Session> occupant : occupants.entrySet()) {
+				occupant.getValue().write("<presence from='" + room + "/" + occupant.getKey() + "' to='" + occupant.getValue().jid
+						+ "' type='unavailable'><x xmlns='" + MUC_USER + "'><item affiliation='none' role='none'>"
+						+ "<actor nick='standin'/><reason>kicked by the stand-in server</reason></item>"
+						+ "<status code='307'/></x></presence>");
+			}
+			occupants.clear();
+		}
+	}
+
+	/**
+	 * Returns the recorded group chat messages in the order received.
+	 */
+	public List<Stanza> getMessages() {
+		synchronized (messages) {
+			return new ArrayList<>(messages);
+		}
+	}
+
+	public int getMessageCount() {
+		return messages.size();
+	}
+
+	public void clearMessages() {
+		messages.clear();
+	}
+
+	/**
+	 * Waits until a number of messages has been recorded.
+	 *
+	 * @param count
+	 * @param timeout
+	 * @param unit
+	 * @return true if the messages arrived in time
+	 * @throws InterruptedException
+	 */
+	public boolean awaitMessages(int count, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (messages.size() < count) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			Thread.sleep(5);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until a number of distinct message bodies has been recorded, a
+	 * message sent again after a reconnect counts once.
+	 *
+	 * @param count
+	 * @param timeout
+	 * @param unit
+	 * @return true if the messages arrived in time
+	 * @throws InterruptedException
+	 */
+	public boolean awaitDistinctMessages(int count, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (getDistinctMessageCount() < count) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			Thread.sleep(5);
+		}
+		return true;
+	}
+
+	private int getDistinctMessageCount() {
+		Set<String> bodies = new HashSet<>();
+		synchronized (messages) {
+			for (Stanza stanza : messages) {
+				bodies.add(stanza.body);
+			}
+		}
+		return bodies.size();
+	}
+
+	/**
+	 * Returns the number of successful logins since the server started.
+	 */
+	public int getLogins() {
+		return logins.get();
+	}
+
+	/**
+	 * Returns the number of messages rejected by the message rate.
+	 */
+	public int getThrottled() {
+		return throttled.get();
+	}
+
+	/**
+	 * Returns the number of open connections.
+	 */
+	public int getConnections() {
+		return sessions.size();
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				if (refuseLogins) {
+					socket.close();
+					continue;
+				}
+				final Session session = new Session(socket);
+				sessions.add(session);
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						session.run();
+					}
+				}, "standin-session");
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	/**
+	 * One client connection.
+	 */
+	private class Session implements Runnable {
+
+		final Socket socket;
+
+		final Writer out;
+
+		volatile String jid;
+
+		String user;
+
+		long windowStart;
+
+		int windowCount;
+
+		Session(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void run() {
+			try {
+				InputStream in = socket.getInputStream();
+				XMLInputFactory factory = XMLInputFactory.newInstance();
+
+				// authentication stream
+				XMLStreamReader reader = factory.createXMLStreamReader(in, "UTF-8");
+				openStream(reader, "<mechanisms xmlns='" + SASL + "'><mechanism>PLAIN</mechanism></mechanisms>");
+				Element auth = next(reader);
+				if (auth == null || !"auth".equals(auth.name)) {
+					return;
+				}
+				user = decodeUser(auth.text);
+				write("<success xmlns='" + SASL + "'/>");
+
+				// the stream is restarted after authentication
+				reader = factory.createXMLStreamReader(in, "UTF-8");
+				openStream(reader, "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>"
+						+ "<session xmlns='urn:ietf:params:xml:ns:xmpp-session'/>");
+				logins.incrementAndGet();
+
+				Element stanza;
+				while ((stanza = next(reader)) != null) {
+					if (latency > 0) {
+						Thread.sleep(latency);
+					}
+					switch (stanza.name) {
+					case "iq":
+						onIq(stanza);
+						break;
+					case "presence":
+						onPresence(stanza);
+						break;
+					case "message":
+						onMessage(stanza);
+						break;
+					default:
+						break;
+					}
+				}
+			} catch (IOException | XMLStreamException | InterruptedException e) {
+				// the connection was dropped
+			} finally {
+				close();
+			}
+		}
+
+		private void openStream(XMLStreamReader reader, String features) throws XMLStreamException {
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && "stream".equals(reader.getLocalName())) {
+					break;
+				}
+			}
+			write("<?xml version='1.0' encoding='UTF-8'?><stream:stream xmlns='jabber:client' "
+					+ "xmlns:stream='http://etherx.jabber.org/streams' from='" + domain + "' id='" + Integer.toHexString(System.identityHashCode(this))
+					+ "' version='1.0'><stream:features>" + features + "</stream:features>");
+		}
+
+		private void onIq(Element iq) {
+			String type = iq.attr("type");
+			if (!"get".equals(type) && !"set".equals(type)) {
+				return;
+			}
+			String id = iq.attr("id");
+			Element bind = iq.child("bind");
+			if (bind != null) {
+				Element resource = bind.child("resource");
+				jid = user + "@" + domain + "/" + (resource == null ? "standin" : resource.text);
+				write("<iq type='result' id='" + escape(id) + "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>"
+						+ escape(jid) + "</jid></bind></iq>");
+				return;
+			}
+			Element query = iq.child("query");
+			if (query != null && "jabber:iq:roster".equals(query.namespace)) {
+				write("<iq type='result' id='" + escape(id) + "'><query xmlns='jabber:iq:roster'/></iq>");
+				return;
+			}
+			// session, ping and everything else
+			write("<iq type='result' id='" + escape(id) + "'/>");
+		}
+
+		private void onPresence(Element presence) {
+			String to = presence.attr("to");
+			if (to == null || to.indexOf('/') < 0) {
+				return;
+			}
+			String room = to.substring(0, to.indexOf('/'));
+			String nickname = to.substring(to.indexOf('/') + 1);
+			Map<String, Session> occupants = getRoom(room);
+			synchronized (occupants) {
+				if ("unavailable".equals(presence.attr("type"))) {
+					occupants.remove(nickname);
+					write("<presence from='" + escape(to) + "' to='" + escape(jid) + "' type='unavailable'>"
+							+ "<x xmlns='" + MUC_USER + "'><item affiliation='none' role='none'/><status code='110'/></x></presence>");
+					return;
+				}
+				Session occupant = occupants.get(nickname);
+				if (occupant != null && occupant != this) {
+					write("<presence from='" + escape(to) + "' to='" + escape(jid) + "' type='error'>"
+							+ "<error type='cancel'><conflict xmlns='" + STANZAS + "'/></error></presence>");
+					return;
+				}
+				occupants.put(nickname, this);
+			}
+			write("<presence from='" + escape(to) + "' to='" + escape(jid) + "'>"
+					+ "<x xmlns='" + MUC_USER + "'><item affiliation='member' role='participant'/><status code='110'/></x></presence>");
+		}
+
+		private void onMessage(Element message) {
+			String room = message.attr("to");
+			String id = message.attr("id");
+			if (!"groupchat".equals(message.attr("type")) || room == null) {
+				return;
+			}
+			Map<String, Session> occupants = getRoom(room);
+			String nickname = null;
+			synchronized (occupants) {
+				for (Map.Entry<String, Session> occupant : occupants.entrySet()) {
+					if (occupant.getValue() == this) {
+						nickname = occupant.getKey();
+					}
+				}
+			}
+			if (nickname == null) {
+				write("<message from='" + escape(room) + "' to='" + escape(jid) + "' type='error' id='" + escape(id) + "'>"
+						+ "<error type='cancel'><not-acceptable xmlns='" + STANZAS + "'/></error></message>");
+				return;
+			}
+			if (isThrottled()) {
+				throttled.incrementAndGet();
+				write("<message from='" + escape(room) + "' to='" + escape(jid) + "' type='error' id='" + escape(id) + "'>"
+						+ "<error type='wait'><resource-constraint xmlns='" + STANZAS + "'/></error></message>");
+				return;
+			}
+
+			Element body = message.child("body");
+			messages.add(new Stanza(room, nickname, id, body == null ? null : body.text));
+
+			// echo to all occupants, including the sender
+			StringBuilder payload = new StringBuilder();
+			for (Element child : message.children) {
+				child.write(payload);
+			}
+			List<Map.Entry<String, Session>> targets;
+			synchronized (occupants) {
+				targets = new ArrayList<>(occupants.entrySet());
+			}
+			for (Map.Entry<String, Session> occupant : targets) {
+				occupant.getValue().write("<message from='" + escape(room + "/" + nickname) + "' to='" + escape(occupant.getValue().jid)
+						+ "' type='groupchat' id='" + escape(id) + "'>" + payload + "</message>");
+			}
+		}
+
+		private boolean isThrottled() {
+			int rate = messageRate;
+			if (rate <= 0) {
+				return false;
+			}
+			long now = System.currentTimeMillis();
+			if (now - windowStart >= 1000) {
+				windowStart = now;
+				windowCount = 0;
+			}
+			return ++windowCount > rate;
+		}
+
+		synchronized void write(String xml) {
+			try {
+				out.write(xml);
+				out.flush();
+			} catch (IOException e) {
+				// the session thread cleans up
+				closeSocket();
+			}
+		}
+
+		void close() {
+			sessions.remove(this);
+			for (Map<String, Session> occupants : rooms.values()) {
+				synchronized (occupants) {
+					occupants.values().remove(this);
+				}
+			}
+			closeSocket();
+		}
+
+		private void closeSocket() {
+			try {
+				// reset instead of a clean close, like a network failure
+				socket.setSoLinger(true, 0);
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private Map<String, Session> getRoom(String room) {
+		Map<String, Session> occupants = rooms.get(room);
+		if (occupants == null) {
+			Map<String, Session> newRoom = new LinkedHashMap<>();
+			occupants = rooms.putIfAbsent(room, newRoom);
+			if (occupants == null) {
+				occupants = newRoom;
+			}
+		}
+		return occupants;
+	}
+
+	/**
+	 * Reads the next top level element of a stream.
+	 *
+	 * @return the element or null at the end of the stream
+	 */
+	private static Element next(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				return read(reader);
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				// </stream:stream>
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static Element read(XMLStreamReader reader) throws XMLStreamException {
+		Element element = new Element(reader.getLocalName(), reader.getNamespaceURI());
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			element.attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+		}
+		StringBuilder text = new StringBuilder();
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				Element child = read(reader);
+				element.children.add(child);
+				element.content.add(child);
+			} else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+				text.append(reader.getText());
+				element.content.add(reader.getText());
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				break;
+			}
+		}
+		element.text = text.toString();
+		return element;
+	}
+
+	private static String decodeUser(String plain) {
+		// authzid NUL authcid NUL password
+		byte[] bytes = org.jivesoftware.smack.util.StringUtils.decodeBase64(plain.trim());
+		String[] parts = new String(bytes, StandardCharsets.UTF_8).split("\u0000");
+		String user = parts.length > 1 ? parts[1] : "anonymous";
+		int at = user.indexOf('@');
+		return at < 0 ? user : user.substring(0, at);
+	}
+
+	private static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("'", "&apos;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * A parsed element, kept to echo message payloads.
+	 */
+	private static class Element {
+
+		final String name;
+
+		final String namespace;
+
+		final Map<String, String> attributes = new LinkedHashMap<>();
+
+		final List<Element> children = new ArrayList<>();
+
+		/**
+		 * Text and child elements in document order.
+		 */
+		final List<Object> content = new ArrayList<>();
+
+		String text = "";
+
+		Element(String name, String namespace) {
+			this.name = name;
+			this.namespace = namespace;
+		}
+
+		String attr(String name) {
+			return attributes.get(name);
+		}
+
+		Element child(String name) {
+			for (Element child : children) {
+				if (child.name.equals(name)) {
+					return child;
+				}
+			}
+			return null;
+		}
+
+		void write(StringBuilder sb) {
+			sb.append('<').append(name);
+			if (namespace != null && !namespace.isEmpty()) {
+				sb.append(" xmlns='").append(escape(namespace)).append('\'');
+			}
+			for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+				sb.append(' ').append(attribute.getKey()).append("='").append(escape(attribute.getValue())).append('\'');
+			}
+			sb.append('>');
+			for (Object part : content) {
+				if (part instanceof Element) {
+					((Element) part).write(sb);
+				} else {
+					sb.append(escape((String) part));
+				}
+			}
+			sb.append("</").append(name).append('>');
+		}
+	}
+}
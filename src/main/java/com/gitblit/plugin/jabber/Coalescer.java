@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects messages per room and merges those arriving within a time window
+ * into a single message.
+ *
+ * A batch is opened by the first message for a room and is released when the
+ * window expires or when it holds the maximum number of messages.
+ *
+ * This class is not thread-safe, it is owned by the {@link MessageSender}.
+ */
+public class Coalescer {
+
+	private final long windowMillis;
+
+	private final int maxMessages;
+
+	private final Map<String, Batch> batches;
+
+	public Coalescer(long windowMillis, int maxMessages) {
+		this.windowMillis = Math.max(0, windowMillis);
+		this.maxMessages = Math.max(1, maxMessages);
+		this.batches = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Returns true if messages are coalesced at all.
+	 *
+	 * @return true if the window is positive and more than one message may be merged
+	 */
+	public boolean isEnabled() {
+		return windowMillis > 0 && maxMessages > 1;
+	}
+
+	public boolean isEmpty() {
+		return batches.isEmpty();
+	}
+
+	/**
+	 * Adds a message to the batch of its room.
+	 *
+	 * @param room
+	 * @param message
+	 * @param now
+	 * @return the merged message if the batch is full, otherwise null
+	 */
+	public Message add(String room, Message message, long now) {
+		Batch batch = batches.get(room);
+		if (batch == null) {
+			batch = new Batch(room, now + windowMillis);
+			batches.put(room, batch);
+		}
+		batch.messages.add(message);
+		if (batch.messages.size() >= maxMessages) {
+			batches.remove(room);
+			return batch.merge();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the time at which the next batch is due.
+	 *
+	 * @return the next deadline or Long.MAX_VALUE if there are no batches
+	 */
+	public long nextDeadline() {
+		long deadline = Long.MAX_VALUE;
+		for (Batch batch : batches.values()) {
+			deadline = Math.min(deadline, batch.deadline);
+		}
+		return deadline;
+	}
+
+	/**
+	 * Removes and merges all batches whose window has expired.
+	 *
+	 * @param now
+	 * @return the merged messages, in the order the batches were opened
+	 */
+	public List<Message> drainDue(long now) {
+		List<Message> due = new ArrayList<>();
+		Iterator<Batch> itr = batches.values().iterator();
+		while (itr.hasNext()) {
+			Batch batch = itr.next();
+			if (batch.deadline <= now) {
+				itr.remove();
+				due.add(batch.merge());
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Removes and merges all batches regardless of their window.
+	 *
+	 * @return the merged messages, in the order the batches were opened
+	 */
+	public List<Message> drainAll() {
+		List<Message> all = new ArrayList<>();
+		for (Batch batch : batches.values()) {
+			all.add(batch.merge());
+		}
+		batches.clear();
+		return all;
+	}
+
+	private static class Batch {
+
+		final String room;
+
+		final long deadline;
+
+		final List<Message> messages;
+
+		Batch(String room, long deadline) {
+			this.room = room;
+			this.deadline = deadline;
+			this.messages = new ArrayList<>();
+		}
+
+		Message merge() {
+			return Message.combine(messages).room(room);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * The commits of a ref update, reduced to what is displayed: the first few
+ * commits and the number of all commits, optionally capped.
+ */
+public class CommitSummary {
+
+	private final int maxCommits;
+
+	private final int countLimit;
+
+	private final List<Commit> commits;
+
+	private int count;
+
+	private boolean capped;
+
+	/**
+	 * @param maxCommits the number of commits to keep for display
+	 * @param countLimit the number of commits to count at most, 0 for no limit
+	 */
+	public CommitSummary(int maxCommits, int countLimit) {
+		this.maxCommits = Math.max(0, maxCommits);
+		this.countLimit = Math.max(0, countLimit);
+		this.commits = new ArrayList<>(this.maxCommits);
+	}
+
+	/**
+	 * Counts a commit and keeps it if it is one of the first commits.
+	 *
+	 * @param commit
+	 * @return true if more commits are wanted
+	 */
+	public boolean add(RevCommit commit) {
+		if (countLimit > 0 && count >= countLimit) {
+			capped = true;
+			return false;
+		}
+		if (commits.size() < maxCommits) {
+			commits.add(new Commit(commit.getName(), commit.getShortMessage()));
+		}
+		count++;
+		return true;
+	}
+
+	/**
+	 * Returns true if the display list is full and the body of further
+	 * commits is not needed.
+	 */
+	public boolean isFull() {
+		return commits.size() >= maxCommits;
+	}
+
+	/**
+	 * Returns the commits kept for display, newest first.
+	 */
+	public List<Commit> getCommits() {
+		return Collections.unmodifiableList(commits);
+	}
+
+	/**
+	 * Returns the number of commits counted.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns true if counting stopped at the limit, i.e. there are more
+	 * commits than counted.
+	 */
+	public boolean isCapped() {
+		return capped;
+	}
+
+	/**
+	 * Formats a number of commits for display, e.g. "12" or "1000+" if
+	 * counting was capped.
+	 */
+	public String formatCount(int n) {
+		return capped ? n + "+" : String.valueOf(n);
+	}
+
+	public static class Commit {
+
+		private final String id;
+
+		private final String shortMessage;
+
+		Commit(String id, String shortMessage) {
+			this.id = id;
+			this.shortMessage = shortMessage;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getShortMessage() {
+			return shortMessage;
+		}
+	}
+}
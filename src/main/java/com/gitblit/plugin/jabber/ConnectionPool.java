@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A fixed set of connections to the Jabber server, each logged in with its
+ * own resource of the configured account.
+ *
+ * Rooms are assigned to connections by consistent hashing, so all messages
+ * of a room go through the same stream and keep their order while different
+ * rooms are written in parallel. While the connection of a room is down, the
+ * room moves to the next connection on the ring which is up, and only the
+ * rooms of the failed connection move.
+ */
+public class ConnectionPool {
+
+	private static final int VIRTUAL_NODES = 64;
+
+	private final ConnectionSupervisor[] connections;
+
+	private final TreeMap<Integer, Integer> ring;
+
+	public ConnectionPool(Jabber jabber, int size) {
+		int n = Math.max(1, size);
+		this.connections = new ConnectionSupervisor[n];
+		this.ring = new TreeMap<>();
+		for (int i = 0; i < n; i++) {
+			connections[i] = new ConnectionSupervisor(jabber, this, i);
+			for (int v = 0; v < VIRTUAL_NODES; v++) {
+				ring.put(hash(i + "#" + v), i);
+			}
+		}
+	}
+
+	/**
+	 * Starts connecting all connections in the background.
+	 */
+	public void start() {
+		for (ConnectionSupervisor connection : connections) {
+			connection.start();
+		}
+	}
+
+	/**
+	 * Disconnects all connections.
+	 */
+	public void stop() {
+		for (ConnectionSupervisor connection : connections) {
+			connection.stop();
+		}
+	}
+
+	/**
+	 * Waits until the rooms have echoed the messages sent on the connections
+	 * which are up.
+	 *
+	 * @param deadline the time in milliseconds at which to stop waiting
+	 * @return the messages which were not echoed, oldest first per connection
+	 */
+	public List<Message> awaitAcked(long deadline) {
+		try {
+			while (System.currentTimeMillis() < deadline && hasUnacked()) {
+				Thread.sleep(10);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		List<Message> unacked = new ArrayList<>();
+		for (ConnectionSupervisor connection : connections) {
+			unacked.addAll(connection.takeUnacked());
+		}
+		return unacked;
+	}
+
+	private boolean hasUnacked() {
+		for (ConnectionSupervisor connection : connections) {
+			if (connection.isConnected() && connection.getUnacked() > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of connections.
+	 */
+	public int size() {
+		return connections.length;
+	}
+
+	/**
+	 * Returns all connections.
+	 */
+	public List<ConnectionSupervisor> getConnections() {
+		return Collections.unmodifiableList(Arrays.asList(connections));
+	}
+
+	/**
+	 * Returns the index of the connection a room is assigned to while all
+	 * connections are up.
+	 *
+	 * @param room
+	 * @return the connection index
+	 */
+	public int getHome(String room) {
+		if (connections.length == 1 || room == null) {
+			return 0;
+		}
+		Map.Entry<Integer, Integer> entry = ring.ceilingEntry(hash(room));
+		if (entry == null) {
+			entry = ring.firstEntry();
+		}
+		return entry.getValue();
+	}
+
+	/**
+	 * Returns the connection to send the messages of a room with.
+	 *
+	 * @param room
+	 * @return the home connection of the room, or the next connection on the
+	 *         ring which is up, or the home connection if all are down
+	 */
+	public ConnectionSupervisor get(String room) {
+		ConnectionSupervisor home = connections[getHome(room)];
+		if (connections.length == 1 || home.isConnected()) {
+			return home;
+		}
+		Integer key = ring.ceilingKey(hash(room));
+		for (Integer index : ring.tailMap(key == null ? ring.firstKey() : key).values()) {
+			if (connections[index].isConnected()) {
+				return connections[index];
+			}
+		}
+		for (Integer index : ring.values()) {
+			if (connections[index].isConnected()) {
+				return connections[index];
+			}
+		}
+		return home;
+	}
+
+	/**
+	 * Returns true if at least one connection is up.
+	 */
+	public boolean isConnected() {
+		for (ConnectionSupervisor connection : connections) {
+			if (connection.isConnected()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the best state of all connections.
+	 */
+	public ConnectionSupervisor.State getState() {
+		ConnectionSupervisor.State state = ConnectionSupervisor.State.STOPPED;
+		for (ConnectionSupervisor connection : connections) {
+			ConnectionSupervisor.State s = connection.getState();
+			if (s.ordinal() > state.ordinal()) {
+				state = s;
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Spreads the bits of the string hash, so similar room names land on
+	 * different parts of the ring.
+	 */
+	private static int hash(String key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
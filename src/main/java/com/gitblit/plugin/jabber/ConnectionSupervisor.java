@@ -0,0 +1,490 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.jivesoftware.smack.AbstractConnectionListener;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Owns one connection of the {@link ConnectionPool} to the Jabber server.
+ *
+ * Connecting, logging in and joining rooms happens on a background thread, so
+ * starting the plugin does not wait for the server. If connecting fails, or
+ * an established connection is lost, the supervisor reconnects with a
+ * jittered exponential backoff, logs in again and rejoins the rooms which
+ * were known before. Rooms are joined in parallel, and optionally all
+ * configured project rooms are joined up front so the first notification to
+ * a room does not wait for the join.
+ *
+ * Messages which the rooms did not echo back before the connection was lost
+ * are handed back to the sender to be sent again, see {@link DeliveryTracker}.
+ */
+public class ConnectionSupervisor {
+
+	private static final int MAX_PARALLEL_JOINS = 8;
+
+	/**
+	 * The state of the connection, from worst to best.
+	 */
+	public enum State {
+		/** not started or stopped */
+		STOPPED,
+		/** an attempt to connect is in progress or scheduled */
+		CONNECTING,
+		/** logged in to the server */
+		CONNECTED;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final Jabber jabber;
+
+	final ConnectionPool pool;
+
+	final int index;
+
+	private final Random random;
+
+	private volatile XMPPConnection conn;
+
+	private volatile RoomRegistry rooms;
+
+	private volatile DeliveryTracker tracker;
+
+	private volatile boolean running;
+
+	private volatile State state = State.STOPPED;
+
+	private ScheduledExecutorService scheduler;
+
+	private int failures;
+
+	public ConnectionSupervisor(Jabber jabber, ConnectionPool pool, int index) {
+		this.jabber = jabber;
+		this.pool = pool;
+		this.index = index;
+		this.random = new Random();
+	}
+
+	/**
+	 * Starts connecting to the server in the background and returns
+	 * immediately. If the first attempt fails, reconnecting is scheduled.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		failures = 0;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, pool.size() == 1 ? "jabber-connect" : "jabber-connect-" + index);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		state = State.CONNECTING;
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!connect()) {
+					scheduleReconnect();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops reconnecting, leaves all rooms and disconnects.
+	 */
+	public synchronized void stop() {
+		running = false;
+		state = State.STOPPED;
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		if (rooms != null) {
+			rooms.leaveAll();
+		}
+		disconnect(conn);
+		conn = null;
+	}
+
+	/**
+	 * Returns true if there is an authenticated connection.
+	 *
+	 * @return true if connected
+	 */
+	public boolean isConnected() {
+		XMPPConnection c = conn;
+		return c != null && c.isAuthenticated();
+	}
+
+	/**
+	 * Returns the state of the connection.
+	 *
+	 * @return the state
+	 */
+	public State getState() {
+		if (state == State.CONNECTED && !isConnected()) {
+			// closed, the reconnect is not scheduled yet
+			return State.CONNECTING;
+		}
+		return state;
+	}
+
+	/**
+	 * Tracks a message sent on the current connection until it is echoed.
+	 *
+	 * @param id the stanza id
+	 * @param message the message with its room
+	 * @return true if the message is tracked, false if it is considered
+	 *         delivered once sent
+	 */
+	public boolean sent(String id, Message message) {
+		DeliveryTracker t = tracker;
+		return t != null && id != null && t.sent(id, message, System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the number of messages sent on the current connection which
+	 * were not echoed yet.
+	 *
+	 * @return the number of unacknowledged messages
+	 */
+	public int getUnacked() {
+		DeliveryTracker t = tracker;
+		return t == null ? 0 : t.size(System.currentTimeMillis());
+	}
+
+	/**
+	 * Stops tracking the messages sent on the current connection.
+	 *
+	 * @return the messages which were not echoed, oldest first
+	 */
+	public List<Message> takeUnacked() {
+		DeliveryTracker t = tracker;
+		if (t == null) {
+			return Collections.emptyList();
+		}
+		return t.takeUnacked(System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the rooms of the current connection.
+	 *
+	 * @return the room registry or null if never connected
+	 */
+	public RoomRegistry getRooms() {
+		return rooms;
+	}
+
+	/**
+	 * Connects, logs in and joins the rooms. The lock is not held while
+	 * talking to the server, so stopping the plugin does not wait for a slow
+	 * server.
+	 */
+	private boolean connect() {
+		JabberConfig config = jabber.getConfig();
+		List<String> roomsToJoin;
+		synchronized (this) {
+			if (!running) {
+				return false;
+			}
+			roomsToJoin = getRoomsToJoin(config);
+		}
+
+		XMPPConnection c = null;
+		try {
+			c = new XMPPTCPConnection(createConfiguration(config));
+			c.connect();
+			if (pool.size() == 1) {
+				c.login(config.username, config.password);
+			} else {
+				// each connection of the pool is a resource of the account
+				c.login(config.username, config.password, "gitblit-" + index);
+			}
+
+			log.info("Connected to Jabber: " + c.getUser());
+
+			DeliveryTracker t = null;
+			if (config.ackTimeout > 0) {
+				t = new DeliveryTracker(config.ackTimeout, config.outboxCapacity);
+				c.addPacketListener(t, new PacketTypeFilter(org.jivesoftware.smack.packet.Message.class));
+			}
+
+			RoomRegistry registry = new RoomRegistry(c, getNickname(config));
+			joinAll(registry, roomsToJoin);
+
+			final XMPPConnection connection = c;
+			c.addConnectionListener(new AbstractConnectionListener() {
+				@Override
+				public void connectionClosedOnError(Exception e) {
+					onConnectionLost(connection, e);
+				}
+			});
+
+			synchronized (this) {
+				if (!running) {
+					// stopped while connecting
+					registry.leaveAll();
+					disconnect(c);
+					return true;
+				}
+				conn = c;
+				rooms = registry;
+				tracker = t;
+				failures = 0;
+				state = State.CONNECTED;
+			}
+			return true;
+		} catch (SmackException | IOException | XMPPException | NoSuchAlgorithmException | KeyManagementException e) {
+			log.error("Failed to connect to jabber server", e);
+			disconnect(c);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the nickname in the rooms. The connections of a pool may end
+	 * up in the same room, so they need different nicknames.
+	 */
+	private String getNickname(JabberConfig config) {
+		if (index == 0) {
+			return config.nickname;
+		}
+		return config.nickname + "-" + (index + 1);
+	}
+
+	/**
+	 * Returns the default room, all rooms joined by a previous connection
+	 * and, if pre-joining is enabled, all configured rooms. Of the default
+	 * and the configured rooms only those assigned to this connection are
+	 * joined.
+	 */
+	private List<String> getRoomsToJoin(JabberConfig config) {
+		List<String> names = new ArrayList<>();
+		if (!StringUtils.isEmpty(config.defaultRoom) && pool.getHome(config.defaultRoom) == index) {
+			names.add(config.defaultRoom);
+		}
+		List<String> known = new ArrayList<>();
+		if (rooms != null) {
+			known.addAll(rooms.getRooms());
+		}
+		if (config.preJoinRooms) {
+			for (String name : config.getConfiguredRooms()) {
+				if (pool.getHome(name) == index) {
+					known.add(name);
+				}
+			}
+		}
+		for (String name : known) {
+			if (!names.contains(name)) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Joins the rooms concurrently and waits until all joins completed or
+	 * failed.
+	 */
+	private void joinAll(final RoomRegistry registry, List<String> names) throws InterruptedIOException {
+		if (names.size() <= 1) {
+			for (String name : names) {
+				join(registry, name);
+			}
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(names.size(), MAX_PARALLEL_JOINS), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jabber-join");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Callable<Void>> joins = new ArrayList<>(names.size());
+			for (final String name : names) {
+				joins.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						join(registry, name);
+						return null;
+					}
+				});
+			}
+			pool.invokeAll(joins);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while joining rooms");
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void join(RoomRegistry registry, String name) {
+		try {
+			registry.join(name);
+		} catch (SmackException | XMPPException e) {
+			log.error("Failed to join room " + name, e);
+		}
+	}
+
+	private void onConnectionLost(XMPPConnection c, Exception e) {
+		if (c != conn) {
+			// an old connection
+			return;
+		}
+		log.warn("Lost connection to jabber server", e);
+		state = State.CONNECTING;
+		DeliveryTracker t = tracker;
+		if (t != null) {
+			List<Message> unacked = t.takeUnacked(System.currentTimeMillis());
+			if (!unacked.isEmpty()) {
+				log.info("Resending {} messages which were not acknowledged", unacked.size());
+				jabber.resend(unacked);
+			}
+		}
+		scheduleReconnect();
+	}
+
+	private synchronized void scheduleReconnect() {
+		if (!running) {
+			return;
+		}
+		JabberConfig config = jabber.getConfig();
+		long minDelay = config.reconnectMinDelay;
+		long maxDelay = config.reconnectMaxDelay;
+		long delay = Math.min(maxDelay, minDelay << Math.min(failures, 20));
+		// full jitter on the upper half to spread reconnects of several instances
+		delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+		failures++;
+
+		log.info("Reconnecting to jabber server in {} ms (attempt {})", delay, failures);
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!connect()) {
+					scheduleReconnect();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void disconnect(XMPPConnection c) {
+		if (c == null) {
+			return;
+		}
+		try {
+			c.disconnect();
+		} catch (SmackException e) {
+			log.error("Failed to disconnect from jabber server", e);
+		}
+	}
+
+	private SecurityMode getSecurityMode(String security) {
+		for (SecurityMode mode : SecurityMode.values()) {
+			if (mode.name().equalsIgnoreCase(security)) {
+				return mode;
+			}
+		}
+		log.warn("Unknown jabber security mode {}, TLS is used if the server offers it", security);
+		return SecurityMode.enabled;
+	}
+
+	private ConnectionConfiguration createConfiguration(JabberConfig config) throws NoSuchAlgorithmException, KeyManagementException {
+		ConnectionConfiguration cfg;
+		if (StringUtils.isEmpty(config.host)) {
+			// the server is looked up by DNS SRV records of the domain
+			cfg = new ConnectionConfiguration(config.domain);
+		} else {
+			cfg = new ConnectionConfiguration(config.host, config.port, config.domain);
+		}
+		// reconnects are handled by the supervisor
+		cfg.setReconnectionAllowed(false);
+		cfg.setSecurityMode(getSecurityMode(config.security));
+
+		if(config.acceptAllCerts) {
+			SSLContext context = SSLContext.getInstance("TLS");
+
+			X509TrustManager tm = new X509TrustManager() {
+				@Override
+				public void checkClientTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
+				}
+				@Override
+				public void checkServerTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
+				}
+				@Override
+				public X509Certificate[] getAcceptedIssuers() {
+					return new X509Certificate[0];
+				}
+			};
+			context.init(null, new TrustManager[] { tm }, new SecureRandom());
+			cfg.setCustomSSLContext(context);
+			cfg.setHostnameVerifier(new HostnameVerifier() {
+				@Override
+				public boolean verify(String arg0, SSLSession arg1) {
+					return true;
+				}
+			});
+		}
+		return cfg;
+	}
+}
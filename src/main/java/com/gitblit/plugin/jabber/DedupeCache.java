@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which commits were announced in which room, so the same commits
+ * pushed to forks and mirrors are not announced again.
+ *
+ * Entries are keyed by the room and the id of the new tip commit, which
+ * identifies the commits it contains. An entry expires after the window and
+ * the oldest entries of a room are evicted at capacity, so a busy room does
+ * not evict the entries of quiet rooms.
+ *
+ * This class is not thread-safe, it is owned by the {@link PushRenderer}.
+ */
+public class DedupeCache {
+
+	private final int capacity;
+
+	private final Map<String, LinkedHashMap<String, Long>> rooms;
+
+	/**
+	 * @param capacity the number of tips to remember per room
+	 */
+	public DedupeCache(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.rooms = new HashMap<>();
+	}
+
+	/**
+	 * Records that commits are announced in a room.
+	 *
+	 * @param room
+	 * @param tip the id of the new tip commit
+	 * @param now
+	 * @param window milliseconds during which the commits count as announced
+	 * @return true if the commits were already announced in the room within
+	 *         the window
+	 */
+	public boolean announce(String room, String tip, long now, long window) {
+		expire(now, window);
+		LinkedHashMap<String, Long> announced = rooms.get(room);
+		if (announced == null) {
+			announced = new LinkedHashMap<>();
+			rooms.put(room, announced);
+		}
+		if (announced.containsKey(tip)) {
+			// the window counts from the first announcement
+			return true;
+		}
+		announced.put(tip, now);
+		if (announced.size() > capacity) {
+			Iterator<Long> itr = announced.values().iterator();
+			itr.next();
+			itr.remove();
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of tips remembered in all rooms.
+	 */
+	public int size() {
+		int size = 0;
+		for (LinkedHashMap<String, Long> announced : rooms.values()) {
+			size += announced.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Removes the entries older than the window, the oldest of a room are
+	 * first, and the rooms without entries.
+	 */
+	private void expire(long now, long window) {
+		Iterator<LinkedHashMap<String, Long>> rItr = rooms.values().iterator();
+		while (rItr.hasNext()) {
+			LinkedHashMap<String, Long> announced = rItr.next();
+			Iterator<Long> itr = announced.values().iterator();
+			while (itr.hasNext() && now - itr.next() > window) {
+				itr.remove();
+			}
+			if (announced.isEmpty()) {
+				rItr.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.Packet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the messages sent on a connection until the room echoes them back.
+ *
+ * A chat room reflects every message to all occupants, including the
+ * sender, with the id of the original stanza. A message is therefore known
+ * to have reached the room once its echo arrives. Messages without an echo
+ * when the connection is lost may still have been in the socket buffer and
+ * are sent again after reconnecting.
+ *
+ * Messages older than the timeout are considered delivered. The listener of
+ * a message is told when the message was echoed or is considered delivered.
+ *
+ * Some servers reflect messages with a new id, so no echo ever matches. If
+ * no echo matched before the first message waited {@link #ECHO_PROBE}
+ * milliseconds, the tracker stops tracking and messages are considered
+ * delivered once sent, instead of being sent again after every connection
+ * loss or restart.
+ */
+public class DeliveryTracker implements PacketListener {
+
+	/**
+	 * How long the first messages wait for an echo at most before the server
+	 * is assumed to change the ids of reflected messages.
+	 */
+	static final long ECHO_PROBE = 5000;
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final long timeout;
+
+	private final int capacity;
+
+	private final LinkedHashMap<String, Pending> pending;
+
+	private boolean echoed;
+
+	private boolean disabled;
+
+	/**
+	 * @param timeout milliseconds after which a message is considered delivered
+	 * @param capacity the number of messages to track at most
+	 */
+	public DeliveryTracker(long timeout, int capacity) {
+		this.timeout = timeout;
+		this.capacity = Math.max(1, capacity);
+		this.pending = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Starts tracking a sent message.
+	 *
+	 * @param id the stanza id
+	 * @param message the message with its room
+	 * @param now
+	 * @return true if the message is tracked, false if the server does not
+	 *         echo the ids and the message is considered delivered
+	 */
+	public boolean sent(String id, Message message, long now) {
+		List<Message> delivered = new ArrayList<>();
+		boolean tracked;
+		synchronized (this) {
+			expire(now, delivered);
+			tracked = !disabled;
+			if (tracked) {
+				if (pending.size() >= capacity) {
+					Iterator<Pending> itr = pending.values().iterator();
+					delivered.add(itr.next().message);
+					itr.remove();
+				}
+				pending.put(id, new Pending(message, now));
+			}
+		}
+		done(delivered);
+		return tracked;
+	}
+
+	/**
+	 * Stops tracking the message of an echoed stanza.
+	 */
+	@Override
+	public void processPacket(Packet packet) {
+		String id = packet.getPacketID();
+		if (id != null) {
+			Pending p;
+			synchronized (this) {
+				p = pending.remove(id);
+				echoed |= p != null;
+			}
+			if (p != null) {
+				p.message.done();
+			}
+		}
+	}
+
+	/**
+	 * Removes the messages which were not echoed within the timeout.
+	 *
+	 * @param now
+	 * @return the unacknowledged messages, oldest first
+	 */
+	public List<Message> takeUnacked(long now) {
+		List<Message> delivered = new ArrayList<>();
+		List<Message> messages;
+		synchronized (this) {
+			expire(now, delivered);
+			messages = new ArrayList<>(pending.size());
+			for (Pending p : pending.values()) {
+				messages.add(p.message);
+			}
+			pending.clear();
+		}
+		done(delivered);
+		return messages;
+	}
+
+	/**
+	 * Returns the number of unacknowledged messages.
+	 *
+	 * @param now
+	 */
+	public int size(long now) {
+		List<Message> delivered = new ArrayList<>();
+		int size;
+		synchronized (this) {
+			expire(now, delivered);
+			size = pending.size();
+		}
+		done(delivered);
+		return size;
+	}
+
+	private void expire(long now, List<Message> expired) {
+		if (!echoed && !disabled && !pending.isEmpty()
+				&& now - pending.values().iterator().next().sent > Math.min(timeout, ECHO_PROBE)) {
+			log.warn("The jabber server did not echo any message id, messages are considered delivered once sent");
+			disabled = true;
+			for (Pending p : pending.values()) {
+				expired.add(p.message);
+			}
+			pending.clear();
+			return;
+		}
+		Iterator<Pending> itr = pending.values().iterator();
+		while (itr.hasNext()) {
+			Pending p = itr.next();
+			if (now - p.sent <= timeout) {
+				break;
+			}
+			expired.add(p.message);
+			itr.remove();
+		}
+	}
+
+	/**
+	 * Tells the listeners, outside of the lock.
+	 */
+	private static void done(List<Message> messages) {
+		for (Message message : messages) {
+			message.done();
+		}
+	}
+
+	private static class Pending {
+
+		final Message message;
+
+		final long sent;
+
+		Pending(Message message, long sent) {
+			this.message = message;
+			this.sent = sent;
+		}
+	}
+}
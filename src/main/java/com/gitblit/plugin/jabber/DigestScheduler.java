@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.plugin.jabber.PushEvent.RefChange;
+
+/**
+ * Tracks the push rate of each repository over a sliding window and
+ * switches busy repositories from a message per push to a periodic digest.
+ *
+ * A repository is switched to digests when it was pushed to
+ * <i>threshold</i> times within the window, and switched back when a digest
+ * is due and the rate has dropped below half the threshold.
+ *
+ * This class is not thread-safe, it is owned by the {@link PushRenderer}.
+ */
+public class DigestScheduler {
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final Map<String, Activity> repositories;
+
+	public DigestScheduler() {
+		this.repositories = new HashMap<>();
+	}
+
+	/**
+	 * Records a push to a repository.
+	 *
+	 * @param repository
+	 * @param now
+	 * @param config
+	 * @return the digest to add the push to, or null if the push is posted
+	 *         on its own
+	 */
+	public Digest track(String repository, long now, JabberConfig config) {
+		Activity activity = repositories.get(repository);
+		if (activity == null) {
+			activity = new Activity();
+			repositories.put(repository, activity);
+		}
+		activity.pushes.addLast(now);
+		activity.trim(now, config);
+
+		if (activity.digest == null && activity.pushes.size() >= config.digestThreshold) {
+			log.info("{} was pushed to {} times within {} ms, posting digests", repository,
+					activity.pushes.size(), config.digestWindow);
+			activity.digest = new Digest(repository, now + config.digestInterval);
+		}
+		return activity.digest;
+	}
+
+	/**
+	 * Removes the digests which are due and switches repositories which
+	 * calmed down back to a message per push.
+	 *
+	 * @param now
+	 * @param config
+	 * @return the digests to post
+	 */
+	public List<Digest> takeDue(long now, JabberConfig config) {
+		if (config.digestThreshold <= 0) {
+			return takeAll();
+		}
+		List<Digest> due = new ArrayList<>();
+		Iterator<Map.Entry<String, Activity>> itr = repositories.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<String, Activity> entry = itr.next();
+			Activity activity = entry.getValue();
+			activity.trim(now, config);
+			Digest digest = activity.digest;
+			if (digest == null) {
+				if (activity.pushes.isEmpty()) {
+					itr.remove();
+				}
+				continue;
+			}
+			if (digest.due > now) {
+				continue;
+			}
+			if (digest.pushes > 0) {
+				due.add(digest);
+			}
+			if (activity.pushes.size() * 2 < config.digestThreshold) {
+				log.info("{} calmed down, posting every push", entry.getKey());
+				activity.digest = null;
+			} else {
+				activity.digest = new Digest(entry.getKey(), now + config.digestInterval);
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Removes all digests, e.g. when stopping.
+	 *
+	 * @return the digests to post
+	 */
+	public List<Digest> takeAll() {
+		List<Digest> all = new ArrayList<>();
+		for (Activity activity : repositories.values()) {
+			if (activity.digest != null && activity.digest.pushes > 0) {
+				all.add(activity.digest);
+			}
+		}
+		repositories.clear();
+		return all;
+	}
+
+	private static class Activity {
+
+		final ArrayDeque<Long> pushes = new ArrayDeque<>();
+
+		Digest digest;
+
+		void trim(long now, JabberConfig config) {
+			while (!pushes.isEmpty() && now - pushes.peekFirst() > config.digestWindow) {
+				pushes.pollFirst();
+			}
+			// only the comparison with the threshold matters
+			while (pushes.size() > 2 * Math.max(1, config.digestThreshold)) {
+				pushes.pollFirst();
+			}
+		}
+	}
+
+	/**
+	 * The pushes to a repository collected over an interval.
+	 */
+	public static class Digest {
+
+		private static final int MAX_AUTHORS = 5;
+
+		final String repository;
+
+		final long due;
+
+		final Set<String> authors;
+
+		final PushSummary refs;
+
+		int pushes;
+
+		int commits;
+
+		boolean capped;
+
+		Digest(String repository, long due) {
+			this.repository = repository;
+			this.due = due;
+			this.authors = new LinkedHashSet<>();
+			this.refs = new PushSummary();
+		}
+
+		/**
+		 * Adds a push.
+		 *
+		 * @param event
+		 * @param commits the new commits of the fast-forwarded branches
+		 */
+		public void add(PushEvent event, Map<RefChange, CommitSummary> commits) {
+			pushes++;
+			authors.add(event.getUser());
+			for (RefChange change : event.getChanges()) {
+				refs.add(change);
+				CommitSummary summary = commits.get(change);
+				if (summary != null) {
+					this.commits += summary.getCount();
+					capped |= summary.isCapped();
+				}
+			}
+		}
+
+		public String getRepository() {
+			return repository;
+		}
+
+		/**
+		 * Returns the authors, the first few by name.
+		 */
+		public String getAuthors() {
+			StringBuilder sb = new StringBuilder();
+			int n = 0;
+			for (String author : authors) {
+				if (n == MAX_AUTHORS) {
+					sb.append(" and ").append(authors.size() - n).append(" more");
+					break;
+				}
+				if (n > 0) {
+					sb.append(", ");
+				}
+				sb.append(author);
+				n++;
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * Describes the pushes, e.g. "12 times with 40 commits: updated 2
+		 * branches (master, nightly)".
+		 *
+		 * @param maxRefs the number of refs to list per group, at most
+		 * @return the description
+		 */
+		public String describe(int maxRefs) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(pushes).append(pushes == 1 ? " time" : " times");
+			if (commits > 0) {
+				sb.append(" with ").append(commits).append(capped ? "+" : "").append(commits == 1 && !capped ? " commit" : " commits");
+			}
+			return sb.append(": ").append(refs.describe(maxRefs)).toString();
+		}
+
+		/**
+		 * Returns true if refs were deleted or rewritten.
+		 */
+		public boolean isImportant() {
+			return refs.isImportant();
+		}
+	}
+}
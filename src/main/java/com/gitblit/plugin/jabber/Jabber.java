@@ -19,29 +19,26 @@ import com.gitblit.manager.IManager;
 import com.gitblit.manager.IRuntimeManager;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.utils.StringUtils;
-import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.SmackException;
-import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smack.tcp.XMPPTCPConnection;
 import org.jivesoftware.smackx.muc.MultiUserChat;
 import org.jivesoftware.smackx.xhtmlim.XHTMLManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.*;
+import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class Jabber implements IManager {
 
@@ -51,11 +48,28 @@ public class Jabber implements IManager {
 
 	final IRuntimeManager runtimeManager;
 
-	private XMPPConnection conn;
+	final ConnectionPool connections;
+
+	final MessageSpool spool;
+
+	final MessageQueue queue;
+
+	final MessageSender sender;
+
+	final PushRenderer renderer;
+
+	final Metrics metrics;
+
+	private volatile JabberConfig config;
+
+	/**
+	 * Set while stopping, messages sent then go to the spool.
+	 */
+	private volatile boolean stopping;
 
-	private Map<String, MultiUserChat> chats;
+	private ScheduledExecutorService settingsRefresh;
 
-	final ExecutorService taskPool;
+	private ObjectName mbeanName;
 
 	public static void init(IRuntimeManager manager) {
 		if (instance == null) {
@@ -69,81 +83,240 @@ public class Jabber implements IManager {
 
 	Jabber(IRuntimeManager runtimeManager) {
 		this.runtimeManager = runtimeManager;
-		this.taskPool = Executors.newCachedThreadPool();
+		this.config = JabberConfig.from(runtimeManager.getSettings());
+		this.connections = new ConnectionPool(this, config.connections);
+		this.spool = openSpool();
+		this.queue = new MessageQueue(config.queueCapacity, config.queueOverflow, spool);
+		this.metrics = new Metrics(queue);
+		Coalescer coalescer = new Coalescer(config.coalesceWindow, config.coalesceMaxMessages);
+		RateLimiter limiter = new RateLimiter(config.roomRate, config.roomBurst, config.globalRate, config.globalBurst);
+		this.sender = new MessageSender(this, queue, coalescer, limiter, config.outboxCapacity);
+		this.renderer = new PushRenderer(this);
 	}
 
 	@Override
 	public Jabber start() {
+		stopping = false;
+		reopenSpool();
+		startSettingsRefresh();
+		registerMBean();
+		connections.start();
+		sender.start();
+		renderer.start();
+		return this;
+	}
 
-		try {
-
-			String domain = runtimeManager.getSettings().getString(Plugin.SETTING_DOMAIN, "jabber.org");
-			ConnectionConfiguration cfg = new ConnectionConfiguration(domain);
-
-			boolean acceptAllCerts = runtimeManager.getSettings().getBoolean(Plugin.SETTING_ACCEPT_ALL_CERTS, false);
-			if(acceptAllCerts) {
-				SSLContext context = SSLContext.getInstance("TLS");
-
-				X509TrustManager tm = new X509TrustManager() {
-					@Override
-					public void checkClientTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
-					}
-					@Override
-					public void checkServerTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
-					}
-					@Override
-					public X509Certificate[] getAcceptedIssuers() {
-						return new X509Certificate[0];
-					}
-				};
-				context.init(null, new TrustManager[] { tm }, new SecureRandom());
-				cfg.setCustomSSLContext(context);
-				cfg.setHostnameVerifier(new HostnameVerifier() {
-					@Override
-					public boolean verify(String arg0, SSLSession arg1) {
-						return true;
-					}
-				});
+	/**
+	 * Stops the plugin without losing notifications.
+	 *
+	 * Pushes which were accepted are still rendered, and the queued messages
+	 * are sent until they are all delivered or <i>jabber.drain.timeout</i>
+	 * has passed. Messages which could not be sent by then are persisted to
+	 * the spool and sent after the next start.
+	 */
+	@Override
+	public Jabber stop() {
+		long deadline = System.currentTimeMillis() + config.drainTimeout;
+		long sentBefore = metrics.get(Metrics.Counter.SENT);
+
+		int unrendered = renderer.stop(deadline);
+		stopping = true;
+		List<Message> leftovers = new ArrayList<>();
+		leftovers.addAll(sender.stop(deadline));
+		leftovers.addAll(0, connections.awaitAcked(deadline));
+		connections.stop();
+		leftovers.addAll(queue.drain());
+		long delivered = metrics.get(Metrics.Counter.SENT) - sentBefore;
+
+		stopSettingsRefresh();
+		unregisterMBean();
+		int persisted = persist(leftovers);
+		int spooled = spool == null ? 0 : spool.size();
+		if (spool != null) {
+			try {
+				spool.close();
+			} catch (IOException e) {
+				log.error("Failed to close jabber spool", e);
 			}
+		}
 
-			conn = new XMPPTCPConnection(cfg);
-			conn.connect();
+		int lost = leftovers.size() - persisted;
+		log.info("Jabber stopped, {} messages delivered while draining, {} left in the spool", delivered, spooled);
+		if (lost > 0) {
+			log.warn("{} undelivered jabber messages are lost, enable {} to keep them", lost, Plugin.SETTING_SPOOL_ENABLED);
+		}
+		if (unrendered > 0) {
+			log.warn("{} pushes were not rendered before {}", unrendered, Plugin.SETTING_DRAIN_TIMEOUT);
+		}
+		return this;
+	}
 
-			String username = runtimeManager.getSettings().getString(Plugin.SETTING_USERNAME, null);
-			String password = runtimeManager.getSettings().getString(Plugin.SETTING_PASSWORD, null);
-			conn.login(username, password);
+	/**
+	 * Appends undelivered messages to the spool.
+	 *
+	 * @param messages
+	 * @return the number of messages persisted
+	 */
+	private int persist(List<Message> messages) {
+		if (spool == null) {
+			return 0;
+		}
+		int persisted = 0;
+		for (Message message : messages) {
+			try {
+				spool.append(message);
+				persisted++;
+			} catch (IOException e) {
+				log.error("Failed to spool undelivered jabber message", e);
+				break;
+			}
+		}
+		return persisted;
+	}
 
-			log.info("Connected to Jabber: " + conn.getUser());
+	/**
+	 * Returns the current settings snapshot.
+	 *
+	 * @return the settings
+	 */
+	public JabberConfig getConfig() {
+		return config;
+	}
 
-			chats = new TreeMap<>();
+	/**
+	 * Replaces the settings snapshot if the settings have changed.
+	 *
+	 * Settings which size the queues and the spool are only applied on
+	 * restart.
+	 */
+	public void reloadConfig() {
+		if (config.isStale(runtimeManager.getSettings())) {
+			config = JabberConfig.from(runtimeManager.getSettings());
+			log.info("Reloaded jabber settings");
+		}
+	}
 
-			String room = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_ROOM, null);
-			String nickname = runtimeManager.getSettings().getString(Plugin.SETTING_NICKNAME, username);
+	private synchronized void startSettingsRefresh() {
+		int interval = config.settingsRefresh;
+		if (settingsRefresh != null || interval <= 0) {
+			return;
+		}
+		settingsRefresh = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jabber-settings");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		settingsRefresh.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reloadConfig();
+				} catch (RuntimeException e) {
+					log.error("Failed to reload jabber settings", e);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
 
-			MultiUserChat chat = new MultiUserChat(conn, room);
-			chat.createOrJoin(nickname);
+	private synchronized void stopSettingsRefresh() {
+		if (settingsRefresh != null) {
+			settingsRefresh.shutdownNow();
+			settingsRefresh = null;
+		}
+	}
 
-			chats.put(room, chat);
+	/**
+	 * Returns the metrics of the notification pipeline.
+	 *
+	 * @return the metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
 
-		} catch (SmackException | IOException | XMPPException | NoSuchAlgorithmException | KeyManagementException e) {
-			log.error("Failed to connect to jabber server", e);
+	private synchronized void registerMBean() {
+		if (!config.jmx || mbeanName != null) {
+			return;
 		}
+		try {
+			ObjectName name = new ObjectName("com.gitblit.plugin.jabber:type=Metrics");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name)) {
+				server.registerMBean(metrics, name);
+				mbeanName = name;
+			}
+		} catch (JMException e) {
+			log.error("Failed to register jabber metrics with JMX", e);
+		}
+	}
 
-		return this;
+	private synchronized void unregisterMBean() {
+		if (mbeanName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (JMException e) {
+			log.error("Failed to unregister jabber metrics from JMX", e);
+		}
+		mbeanName = null;
 	}
 
-	@Override
-	public Jabber stop() {
-        this.taskPool.shutdown();
+	/**
+	 * Opens the on-disk spool for spilled and undelivered messages.
+	 *
+	 * @return the spool or null if it is disabled or can not be opened
+	 */
+	private MessageSpool openSpool() {
+		if (!config.spoolEnabled) {
+			return null;
+		}
+		File folder = runtimeManager.getFileOrFolder(Plugin.SETTING_SPOOL_FOLDER, "${baseFolder}/jabber/spool");
 		try {
-			if (conn != null) {
-				conn.disconnect();
-			}
-		} catch (SmackException e) {
-			log.error("Failed to connect to jabber server", e);
+			return MessageSpool.open(folder, config.spoolSegmentSize);
+		} catch (IOException e) {
+			log.error("Failed to open jabber spool " + folder + ", spilled messages are kept in memory", e);
+			return null;
 		}
+	}
 
-		return this;
+	/**
+	 * Opens the spool again if it was closed by {@link #stop()}, so the
+	 * messages persisted then are sent.
+	 */
+	private void reopenSpool() {
+		if (spool == null) {
+			return;
+		}
+		try {
+			spool.reopen();
+		} catch (IOException e) {
+			log.error("Failed to reopen jabber spool, spilled messages are kept in memory", e);
+		}
+	}
+
+	/**
+	 * Returns true if there is at least one authenticated connection to the
+	 * server.
+	 *
+	 * @return true if connected
+	 */
+	public boolean isConnected() {
+		return connections.isConnected();
+	}
+
+	/**
+	 * Returns the state of the connection to the server. Notifications
+	 * produced while connecting are held by the sender until the connection
+	 * is ready.
+	 *
+	 * @return the connection state
+	 */
+	public ConnectionSupervisor.State getState() {
+		return connections.getState();
 	}
 
 	/**
@@ -153,8 +326,7 @@ public class Jabber implements IManager {
 	 * @return true if the repository can be posted to Jabber chat room.
 	 */
 	public boolean shallPost(RepositoryModel repository) {
-		boolean postPersonalRepos = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_PERSONAL_REPOS, false);
-		return !(repository.isPersonalRepository() && !postPersonalRepos);
+		return !(repository.isPersonalRepository() && !config.postPersonalRepos);
 	}
 
 	/**
@@ -164,110 +336,162 @@ public class Jabber implements IManager {
 	 * @param message
 	 */
 	public void setRoom(RepositoryModel repository, Message message) {
-		boolean useProjectRooms = runtimeManager.getSettings().getBoolean(Plugin.SETTING_USE_PROJECT_ROOMS, false);
-		if (!useProjectRooms) {
+		setRoom(repository.name, message);
+	}
+
+	/**
+	 * Optionally sets the room of the message based on the repository name.
+	 *
+	 * @param repository
+	 * @param message
+	 */
+	public void setRoom(String repository, Message message) {
+		JabberConfig cfg = config;
+		if (!cfg.useProjectRooms) {
 			return;
 		}
 
-		log.info("Configured to use project rooms. Project name is " + repository.name);
+		List<String> rooms = cfg.getRooms(repository);
+		if (!rooms.isEmpty()) {
+			message.setRoom(rooms.get(0));
+		}
+	}
 
-		if (StringUtils.isEmpty(repository.name)) {
+	/**
+	 * Asynchronously send a message about a repository to all rooms the
+	 * repository is routed to.
+	 *
+	 * @param repository
+	 * @param message
+	 */
+	public void sendAsync(String repository, Message message) {
+		List<String> rooms = config.getRooms(repository);
+		if (rooms.size() <= 1) {
+			if (rooms.size() == 1) {
+				message.setRoom(rooms.get(0));
+			}
+			sendAsync(message);
 			return;
 		}
-
-		String defaultRoom = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_ROOM, null);
-		String roomKey = String.format(Plugin.SETTING_PROJECT_ROOM, repository.name).replaceAll(".git$", "");
-		String projectRoom = runtimeManager.getSettings().getString(roomKey, null);
-
-		log.info("Found projectRoom " + projectRoom + " via key " + roomKey);
-
-		if (!StringUtils.isEmpty(projectRoom)) {
-			message.setRoom(projectRoom);
-		} else {
-			message.setRoom(defaultRoom);
+		for (String room : rooms) {
+			sendAsync(message.copy().room(room));
 		}
 	}
 
+    /**
+     * Asynchronously render a push and send the resulting messages.
+     *
+     * @param event
+     * @return true if the push was accepted for rendering
+     */
+    public boolean renderAsync(PushEvent event) {
+        return renderer.renderAsync(event);
+    }
+
     /**
      * Asynchronously send a message.
      *
+     * The message is put on the bounded outbound queue and sent by the
+     * sender thread.
+     *
      * @param message
-     * @throws IOException
+     * @return true if the message was queued
      */
-    public void sendAsync(final Message message) {
-        taskPool.submit(new JabberTask(this, message));
+    public boolean sendAsync(final Message message) {
+        if (stopping) {
+            // stopping, keep the message for the next start
+            queue.spill(message);
+            return true;
+        }
+        message.setQueued(System.nanoTime());
+        boolean queued = queue.offer(message);
+        if (queued) {
+            metrics.increment(Metrics.Counter.QUEUED);
+        }
+        return queued;
     }
 
     /**
-	 * Send a message.
+     * Sends messages again which may have been lost with a connection.
+     *
+     * @param messages the messages with their rooms, oldest first
+     */
+    public void resend(List<Message> messages) {
+        sender.resend(messages);
+    }
+
+    /**
+     * Returns the number of messages waiting to be sent.
+     *
+     * @return the outbound queue depth
+     */
+    public int getQueueDepth() {
+        return queue.depth();
+    }
+
+	/**
+	 * Returns the room of the message or the default room if it has none.
 	 *
 	 * @param message
-	 * @throws IOException
+	 * @return the destination room
 	 */
-	public void send(Message message) throws IOException {
-
+	public String getRoom(Message message) {
 		String room = message.getRoom();
 
 		if (StringUtils.isEmpty(room)) {
 			// default room
-			room = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_ROOM, null);
+			room = config.defaultRoom;
 		}
+		return room;
+	}
 
-		try {
-			MultiUserChat chat = chats.get(room);
-			if (chat == null) {
-				String username = runtimeManager.getSettings().getString(Plugin.SETTING_USERNAME, null);
-				String nickname = runtimeManager.getSettings().getString(Plugin.SETTING_NICKNAME, username);
+    /**
+	 * Send a message.
+	 *
+	 * @param message
+	 * @throws IOException if there is no connection, the message was not sent
+	 */
+	public void send(Message message) throws IOException {
 
-				chat = new MultiUserChat(conn, room);
-				chat.createOrJoin(nickname);
+		String room = getRoom(message);
 
-				chats.put(room, chat);
-			}
+		ConnectionSupervisor connection = connections.get(room);
+		RoomRegistry registry = connection.getRooms();
+		if (registry == null || !connection.isConnected()) {
+			throw new IOException("Not connected to jabber server (" + connections.getState() + ")");
+		}
+
+		long start = System.nanoTime();
+		try {
+			MultiUserChat chat = registry.join(room);
+			org.jivesoftware.smack.packet.Message msg = chat.createMessage();
+			msg.setBody(message.getMessage());
 
 			if (message.getHtml() == null) {
 				log.info("Send text message [" + message.getMessage() + " to room [" + room + "]");
-	 			chat.sendMessage(message.getMessage());
 			} else {
-				org.jivesoftware.smack.packet.Message msg = chat.createMessage();
-
-				msg.setBody(message.getMessage());
-
 				XHTMLManager.addBody(msg, message.getHtml());
 
 				log.info("Sending XML [" + msg.toXML().toString() + "]");
-
-				chat.sendMessage(msg);
 			}
+			chat.sendMessage(msg);
+			boolean tracked = connection.sent(msg.getPacketID(), message.copy().room(room));
+			metrics.record(Metrics.Stage.SEND, System.nanoTime() - start);
+			metrics.sent(room);
+			if (message.getListener() != null) {
+				message.getListener().sent(message);
+			}
+			if (!tracked) {
+				message.done();
+			}
+		} catch (SmackException.NotConnectedException e) {
+			throw new IOException("Not connected to jabber server", e);
 		} catch (SmackException | XMPPException e) {
+			metrics.increment(Metrics.Counter.FAILED);
 			log.error("Failed to send message to jabber server", e);
+			message.done();
 		}
 
 	}
 
-    private static class JabberTask implements Serializable, Callable<Boolean> {
-
-        private static final long serialVersionUID = 1L;
-
-        final Logger log = LoggerFactory.getLogger(getClass());
-        final Jabber jabber;
-        final Message message;
-
-        public JabberTask(Jabber slacker, Message message) {
-            this.jabber = slacker;
-            this.message = message;
-        }
-
-        @Override
-        public Boolean call() {
-            try {
-                jabber.send(message);
-                return true;
-            } catch (IOException e) {
-                log.error("Failed to send asynchronously to Jabber!", e);
-            }
-            return false;
-        }
-    }
-
 }
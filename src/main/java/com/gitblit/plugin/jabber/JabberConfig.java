@@ -0,0 +1,395 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.IStoredSettings;
+import com.gitblit.Keys;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Immutable snapshot of the plugin settings.
+ *
+ * The snapshot is parsed once from the Gitblit settings, including the
+ * project room table, so sending a notification does not look up or parse
+ * any setting. {@link Jabber} replaces the snapshot when the settings change.
+ */
+public class JabberConfig {
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	public final String domain;
+
+	public final boolean acceptAllCerts;
+
+	public final String host;
+
+	public final int port;
+
+	public final String security;
+
+	public final String username;
+
+	public final String password;
+
+	public final String nickname;
+
+	public final String defaultRoom;
+
+	public final boolean useProjectRooms;
+
+	public final boolean postPersonalRepos;
+
+	public final boolean postBranches;
+
+	public final boolean postTags;
+
+	public final boolean preJoinRooms;
+
+	public final int connections;
+
+	public final boolean jmx;
+
+	public final int settingsRefresh;
+
+	public final int queueCapacity;
+
+	public final OverflowPolicy queueOverflow;
+
+	public final int coalesceWindow;
+
+	public final int coalesceMaxMessages;
+
+	public final int reconnectMinDelay;
+
+	public final int reconnectMaxDelay;
+
+	public final int outboxCapacity;
+
+	public final int ackTimeout;
+
+	public final int drainTimeout;
+
+	public final double roomRate;
+
+	public final int roomBurst;
+
+	public final double globalRate;
+
+	public final int globalBurst;
+
+	public final boolean spoolEnabled;
+
+	public final long spoolSegmentSize;
+
+	public final int renderQueueCapacity;
+
+	public final int maxCommits;
+
+	public final int commitCountLimit;
+
+	public final int aggregateMinRefs;
+
+	public final int aggregateMaxRefs;
+
+	public final int dedupeWindow;
+
+	public final int dedupeCapacity;
+
+	public final boolean dedupeSuppress;
+
+	public final int digestThreshold;
+
+	public final int digestWindow;
+
+	public final int digestInterval;
+
+	public final String canonicalUrl;
+
+	public final int shortCommitIdLength;
+
+	public final MessageTemplate createTemplate;
+
+	public final MessageTemplate updateTemplate;
+
+	public final MessageTemplate deleteTemplate;
+
+	public final MessageTemplate commitTemplate;
+
+	public final MessageTemplate compareTemplate;
+
+	public final MessageTemplate summaryTemplate;
+
+	public final MessageTemplate duplicateTemplate;
+
+	public final MessageTemplate digestTemplate;
+
+	/**
+	 * The compiled project rooms and routing rules.
+	 */
+	private final RoomRouter router;
+
+	/**
+	 * The repository patterns of the notification filters, routed to the
+	 * names of the filters.
+	 */
+	private final RoomRouter filterRouter;
+
+	private final Map<String, NotificationFilter> filters;
+
+	/**
+	 * All rooms named by project rooms and routing rules.
+	 */
+	private final List<String> configuredRooms;
+
+	/**
+	 * The raw values the snapshot was parsed from, to detect changes.
+	 */
+	private final Map<String, String> source;
+
+	private JabberConfig(IStoredSettings settings, Map<String, String> source) {
+		this.source = source;
+
+		domain = settings.getString(Plugin.SETTING_DOMAIN, "jabber.org");
+		acceptAllCerts = settings.getBoolean(Plugin.SETTING_ACCEPT_ALL_CERTS, false);
+		host = settings.getString(Plugin.SETTING_HOST, null);
+		port = settings.getInteger(Plugin.SETTING_PORT, 5222);
+		security = settings.getString(Plugin.SETTING_SECURITY, "enabled");
+		username = settings.getString(Plugin.SETTING_USERNAME, null);
+		password = settings.getString(Plugin.SETTING_PASSWORD, null);
+		nickname = settings.getString(Plugin.SETTING_NICKNAME, username);
+		defaultRoom = settings.getString(Plugin.SETTING_DEFAULT_ROOM, null);
+
+		useProjectRooms = settings.getBoolean(Plugin.SETTING_USE_PROJECT_ROOMS, false);
+		postPersonalRepos = settings.getBoolean(Plugin.SETTING_POST_PERSONAL_REPOS, false);
+		postBranches = settings.getBoolean(Plugin.SETTING_POST_BRANCHES, true);
+		postTags = settings.getBoolean(Plugin.SETTING_POST_TAGS, true);
+		preJoinRooms = settings.getBoolean(Plugin.SETTING_PRE_JOIN_ROOMS, false);
+		connections = Math.max(1, settings.getInteger(Plugin.SETTING_CONNECTIONS, 1));
+		jmx = settings.getBoolean(Plugin.SETTING_JMX, false);
+		settingsRefresh = Math.max(0, settings.getInteger(Plugin.SETTING_SETTINGS_REFRESH, 30));
+
+		queueCapacity = settings.getInteger(Plugin.SETTING_QUEUE_CAPACITY, 1000);
+		queueOverflow = OverflowPolicy.fromSetting(settings.getString(Plugin.SETTING_QUEUE_OVERFLOW, "block"), OverflowPolicy.BLOCK);
+		coalesceWindow = settings.getInteger(Plugin.SETTING_COALESCE_WINDOW, 0);
+		coalesceMaxMessages = settings.getInteger(Plugin.SETTING_COALESCE_MAX_MESSAGES, 20);
+		reconnectMinDelay = settings.getInteger(Plugin.SETTING_RECONNECT_MIN_DELAY, 1000);
+		reconnectMaxDelay = settings.getInteger(Plugin.SETTING_RECONNECT_MAX_DELAY, 300000);
+		outboxCapacity = settings.getInteger(Plugin.SETTING_OUTBOX_CAPACITY, 1000);
+		ackTimeout = settings.getInteger(Plugin.SETTING_ACK_TIMEOUT, 30000);
+		drainTimeout = Math.max(0, settings.getInteger(Plugin.SETTING_DRAIN_TIMEOUT, 10000));
+		roomRate = getDouble(settings, Plugin.SETTING_RATE_ROOM, 0);
+		roomBurst = settings.getInteger(Plugin.SETTING_RATE_ROOM_BURST, 5);
+		globalRate = getDouble(settings, Plugin.SETTING_RATE_GLOBAL, 0);
+		globalBurst = settings.getInteger(Plugin.SETTING_RATE_GLOBAL_BURST, 20);
+		spoolEnabled = settings.getBoolean(Plugin.SETTING_SPOOL_ENABLED, true);
+		spoolSegmentSize = settings.getFilesize(Plugin.SETTING_SPOOL_SEGMENT_SIZE, 4 * 1024 * 1024L);
+
+		renderQueueCapacity = settings.getInteger(Plugin.SETTING_RENDER_QUEUE_CAPACITY, 1000);
+		maxCommits = settings.getInteger(Plugin.SETTING_MAX_COMMITS, 5);
+		commitCountLimit = settings.getInteger(Plugin.SETTING_COMMIT_COUNT_LIMIT, 1000);
+		aggregateMinRefs = settings.getInteger(Plugin.SETTING_AGGREGATE_MIN_REFS, 0);
+		aggregateMaxRefs = settings.getInteger(Plugin.SETTING_AGGREGATE_MAX_REFS, 5);
+		dedupeWindow = settings.getInteger(Plugin.SETTING_DEDUPE_WINDOW, 0);
+		dedupeCapacity = settings.getInteger(Plugin.SETTING_DEDUPE_CAPACITY, 1000);
+		dedupeSuppress = settings.getBoolean(Plugin.SETTING_DEDUPE_SUPPRESS, false);
+		digestThreshold = settings.getInteger(Plugin.SETTING_DIGEST_THRESHOLD, 0);
+		digestWindow = settings.getInteger(Plugin.SETTING_DIGEST_WINDOW, 3600000);
+		digestInterval = settings.getInteger(Plugin.SETTING_DIGEST_INTERVAL, 900000);
+		canonicalUrl = settings.getString(Keys.web.canonicalUrl, "https://localhost:8443");
+		shortCommitIdLength = settings.getInteger(Keys.web.shortCommitIdLength, 6);
+
+		createTemplate = getTemplate(settings, Plugin.SETTING_TEMPLATE_CREATE,
+				"*${user}* has created ${refType} [${ref}](${refUrl}) in [${repo}](${repoUrl})");
+		updateTemplate = getTemplate(settings, Plugin.SETTING_TEMPLATE_UPDATE,
+				"*${user}* has ${action} [${ref}](${refUrl}) in [${repo}](${repoUrl})");
+		deleteTemplate = getTemplate(settings, Plugin.SETTING_TEMPLATE_DELETE,
+				"*${user}* has deleted ${refType} ${ref} from [${repo}](${repoUrl})");
+		commitTemplate = getTemplate(settings, Plugin.SETTING_TEMPLATE_COMMIT,
+				"[${shortId}](${commitUrl}) ${message}");
+		compareTemplate = getTemplate(settings, Plugin.SETTING_TEMPLATE_COMPARE,
+				"[${compareText}](${compareUrl})");
+		summaryTemplate = getTemplate(settings, Plugin.SETTING_TEMPLATE_SUMMARY,
+				"*${user}* has ${summary} in [${repo}](${repoUrl})");
+		duplicateTemplate = getTemplate(settings, Plugin.SETTING_TEMPLATE_DUPLICATE,
+				"*${user}* has also pushed [${ref}](${refUrl}) to [${repo}](${repoUrl})");
+		digestTemplate = getTemplate(settings, Plugin.SETTING_TEMPLATE_DIGEST,
+				"[${repo}](${repoUrl}) digest: *${user}* pushed ${summary}");
+
+		RoomRouter.Builder routes = new RoomRouter.Builder();
+		Set<String> allRooms = new LinkedHashSet<>();
+		String projectPrefix = String.format(Plugin.SETTING_PROJECT_ROOM, "");
+		for (String key : settings.getAllKeys(projectPrefix)) {
+			String room = settings.getString(key, null);
+			if (!StringUtils.isEmpty(room)) {
+				// an exact project room beats any pattern
+				routes.add(key.substring(projectPrefix.length()), Integer.MAX_VALUE, Collections.singletonList(room));
+				allRooms.add(room);
+			}
+		}
+		String routePrefix = String.format(Plugin.SETTING_ROUTE, "");
+		for (String key : settings.getAllKeys(routePrefix)) {
+			if (key.endsWith(Plugin.SETTING_ROUTE_PRIORITY_SUFFIX)) {
+				continue;
+			}
+			List<String> values = StringUtils.getStringsFromValue(settings.getString(key, ""), " ");
+			if (values.size() < 2) {
+				continue;
+			}
+			int priority = settings.getInteger(key + Plugin.SETTING_ROUTE_PRIORITY_SUFFIX, 0);
+			routes.add(values.get(0), priority, values.subList(1, values.size()));
+			allRooms.addAll(values.subList(1, values.size()));
+		}
+		router = routes.build(defaultRoom);
+		configuredRooms = Collections.unmodifiableList(new ArrayList<>(allRooms));
+
+		RoomRouter.Builder filterRoutes = new RoomRouter.Builder();
+		Map<String, NotificationFilter> compiled = new HashMap<>();
+		String filterPrefix = String.format(Plugin.SETTING_FILTER, "");
+		for (String key : settings.getAllKeys(filterPrefix)) {
+			String name = key.substring(filterPrefix.length());
+			String pattern = settings.getString(key, null);
+			if (name.indexOf('.') >= 0 || StringUtils.isEmpty(pattern)) {
+				// a property of a filter
+				continue;
+			}
+			compiled.put(name, NotificationFilter.compile(
+					getStrings(settings, key + Plugin.SETTING_FILTER_REFS_SUFFIX),
+					getStrings(settings, key + Plugin.SETTING_FILTER_AUTHORS_SUFFIX),
+					getStrings(settings, key + Plugin.SETTING_FILTER_COMMITTERS_SUFFIX),
+					getStrings(settings, key + Plugin.SETTING_FILTER_PATHS_SUFFIX)));
+			int priority = settings.getInteger(key + Plugin.SETTING_FILTER_PRIORITY_SUFFIX, 0);
+			filterRoutes.add(pattern, priority, Collections.singletonList(name));
+		}
+		filterRouter = filterRoutes.build(null);
+		filters = compiled;
+	}
+
+	/**
+	 * Parses a snapshot of the settings.
+	 *
+	 * @param settings
+	 * @return the snapshot
+	 */
+	public static JabberConfig from(IStoredSettings settings) {
+		return new JabberConfig(settings, read(settings));
+	}
+
+	/**
+	 * Returns true if the settings differ from those this snapshot was
+	 * parsed from.
+	 *
+	 * @param settings
+	 * @return true if the settings changed
+	 */
+	public boolean isStale(IStoredSettings settings) {
+		return !source.equals(read(settings));
+	}
+
+	/**
+	 * Returns the rooms of a repository.
+	 *
+	 * @param repository
+	 * @return the routed rooms, or the default room if there are none or
+	 *         project rooms are not used
+	 */
+	public List<String> getRooms(String repository) {
+		if (!useProjectRooms || StringUtils.isEmpty(repository)) {
+			return router.getDefaultRooms();
+		}
+		return router.route(repository);
+	}
+
+	/**
+	 * Returns all rooms named by project rooms and routing rules.
+	 *
+	 * @return the rooms or an empty list if project rooms are not used
+	 */
+	public List<String> getConfiguredRooms() {
+		if (!useProjectRooms) {
+			return Collections.emptyList();
+		}
+		return configuredRooms;
+	}
+
+	/**
+	 * Returns the notification filter of a repository.
+	 *
+	 * @param repository
+	 * @return the combined filters with the highest priority whose pattern
+	 *         matches the repository, or a filter which posts everything
+	 */
+	public NotificationFilter getFilter(String repository) {
+		if (filters.isEmpty() || StringUtils.isEmpty(repository)) {
+			return NotificationFilter.ALL;
+		}
+		List<String> names = filterRouter.route(repository);
+		List<NotificationFilter> matches = new ArrayList<>(names.size());
+		for (String name : names) {
+			matches.add(filters.get(name));
+		}
+		return NotificationFilter.all(matches);
+	}
+
+	private static List<String> getStrings(IStoredSettings settings, String key) {
+		return StringUtils.getStringsFromValue(settings.getString(key, ""), " ");
+	}
+
+	private static double getDouble(IStoredSettings settings, String key, double defaultValue) {
+		String value = settings.getString(key, null);
+		if (StringUtils.isEmpty(value)) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private MessageTemplate getTemplate(IStoredSettings settings, String key, String defaultTemplate) {
+		String value = settings.getString(key, null);
+		if (!StringUtils.isEmpty(value)) {
+			try {
+				return MessageTemplate.parse(value);
+			} catch (IllegalArgumentException e) {
+				log.warn("Invalid {}: {}, using the default template", key, e.getMessage());
+			}
+		}
+		return MessageTemplate.parse(defaultTemplate);
+	}
+
+	private static Map<String, String> read(IStoredSettings settings) {
+		Map<String, String> values = new TreeMap<>();
+		for (String key : settings.getAllKeys("jabber.")) {
+			values.put(key, settings.getString(key, null));
+		}
+		values.put(Keys.web.canonicalUrl, settings.getString(Keys.web.canonicalUrl, null));
+		values.put(Keys.web.shortCommitIdLength, settings.getString(Keys.web.shortCommitIdLength, null));
+		return values;
+	}
+}
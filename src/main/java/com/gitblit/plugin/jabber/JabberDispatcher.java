@@ -16,6 +16,12 @@
 package com.gitblit.plugin.jabber;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -43,6 +49,8 @@ public class JabberDispatcher extends DispatchCommand {
 		boolean canAdmin = getContext().getClient().getUser().canAdmin();
 		if (canAdmin) {
 			register(TestCommand.class);
+			register(StatsCommand.class);
+			register(BenchCommand.class);
 		}
 	}
 
@@ -89,4 +97,170 @@ public class JabberDispatcher extends DispatchCommand {
 		}
 	}
 
+	@CommandMetaData(name = "stats", description = "Show the metrics of the notification pipeline")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Shows counters and latencies since the plugin started"),
+			@UsageExample(syntax = "${cmd} --reset", description = "Shows the metrics and clears them")
+	})
+	public static class StatsCommand extends SshCommand {
+
+		@Option(name = "--reset", usage = "Clear the metrics after showing them")
+		boolean reset;
+
+		@Override
+		public void run() throws Failure {
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			Jabber.init(runtimeManager);
+			Jabber jabber = Jabber.instance();
+			Metrics metrics = jabber.getMetrics();
+
+			long uptime = (System.currentTimeMillis() - metrics.getStarted()) / 1000;
+			stdout.println(String.format("state: %s, %d connection(s), metrics of the last %dh %02dm %02ds",
+					jabber.getState(), jabber.getConfig().connections, uptime / 3600, (uptime / 60) % 60, uptime % 60));
+			stdout.println(String.format("queue: %d of %d", metrics.getQueueDepth(), jabber.getConfig().queueCapacity));
+			stdout.println();
+
+			for (Map.Entry<String, Long> counter : metrics.getCounters().entrySet()) {
+				stdout.println(String.format("%-16s %10d", counter.getKey(), counter.getValue()));
+			}
+			stdout.println();
+
+			stdout.println(String.format("%-8s %10s %10s %10s %10s %10s %10s", "latency", "count", "mean", "p50", "p90", "p99", "max"));
+			for (Metrics.Stage stage : Metrics.Stage.values()) {
+				LatencyHistogram latency = metrics.getLatency(stage);
+				stdout.println(String.format("%-8s %10d %10s %10s %10s %10s %10s", stage, latency.getCount(),
+						millis(latency.getMean()), millis(latency.getPercentile(50)), millis(latency.getPercentile(90)),
+						millis(latency.getPercentile(99)), millis(latency.getMax())));
+			}
+
+			Map<String, Long> rooms = metrics.getRooms();
+			if (!rooms.isEmpty()) {
+				stdout.println();
+				stdout.println("messages per room");
+				for (Map.Entry<String, Long> room : rooms.entrySet()) {
+					stdout.println(String.format("%10d  %s", room.getValue(), room.getKey()));
+				}
+			}
+
+			if (reset) {
+				metrics.reset();
+			}
+		}
+
+		private static String millis(long micros) {
+			return String.format("%.1f ms", micros / 1000d);
+		}
+	}
+
+	@CommandMetaData(name = "bench", description = "Send synthetic notifications and report throughput and latency")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Sends 100 messages at 10 messages per second to the default room"),
+			@UsageExample(syntax = "${cmd} -n 1000 --rate 50 room1@conference.server room2@conference.server",
+					description = "Sends 1000 messages at 50 messages per second, spread over two rooms")
+	})
+	public static class BenchCommand extends SshCommand {
+
+		@Option(name = "-n", aliases = { "--count" }, metaVar = "COUNT", usage = "Number of messages to send")
+		int count = 100;
+
+		@Option(name = "--rate", metaVar = "RATE", usage = "Messages per second to offer, 0 for as fast as possible")
+		double rate = 10;
+
+		@Option(name = "--timeout", metaVar = "SECONDS", usage = "Seconds to wait for the messages to be sent")
+		int timeout = 60;
+
+		@Argument(index = 0, multiValued = true, metaVar = "ROOM", usage = "Rooms to send to, the default room if none")
+		List<String> rooms = new ArrayList<>();
+
+		@Override
+		public void run() throws Failure {
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			Jabber.init(runtimeManager);
+			Jabber jabber = Jabber.instance();
+			Metrics metrics = jabber.getMetrics();
+			if (count <= 0) {
+				throw new Failure(1, "Count must be positive");
+			}
+
+			long deferred = metrics.get(Metrics.Counter.DEFERRED);
+			long held = metrics.get(Metrics.Counter.HELD);
+
+			final LatencyHistogram latency = new LatencyHistogram();
+			final AtomicInteger sent = new AtomicInteger();
+			final AtomicInteger unsent = new AtomicInteger();
+			int rejected = 0;
+
+			stdout.println(String.format("sending %d messages at %s to %s", count,
+					rate > 0 ? rate + " messages/s" : "full speed", rooms.isEmpty() ? "the default room" : rooms));
+			stdout.flush();
+
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				if (rate > 0) {
+					// pace by the schedule, not by the previous send
+					long due = start + (long) (i * TimeUnit.SECONDS.toNanos(1) / rate);
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						try {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						} catch (InterruptedException e) {
+							throw new Failure(1, "Interrupted");
+						}
+					}
+				}
+
+				Message message = Message.text(String.format("Gitblit benchmark message %d of %d", i + 1, count));
+				if (!rooms.isEmpty()) {
+					message.room(rooms.get(i % rooms.size()));
+				}
+				final long offered = System.nanoTime();
+				final AtomicBoolean done = new AtomicBoolean();
+				message.setListener(new Message.Listener() {
+					@Override
+					public void sent(Message m) {
+						if (done.compareAndSet(false, true)) {
+							latency.record(System.nanoTime() - offered);
+							sent.incrementAndGet();
+						}
+					}
+
+					@Override
+					public void done(Message m) {
+						// done before sent: dropped, failed or spooled
+						if (done.compareAndSet(false, true)) {
+							unsent.incrementAndGet();
+						}
+					}
+				});
+				if (!jabber.sendAsync(message)) {
+					rejected++;
+				}
+			}
+			long offeredTime = System.nanoTime() - start;
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+			while (sent.get() + unsent.get() + rejected < count && System.nanoTime() < deadline) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+
+			stdout.println(String.format("offered %d messages in %.1f s (%.1f messages/s)", count,
+					offeredTime / 1e9, count * 1e9 / Math.max(1, offeredTime)));
+			stdout.println(String.format("sent %d messages in %.1f s (%.1f messages/s)", sent.get(),
+					elapsed / 1e9, sent.get() * 1e9 / Math.max(1, elapsed)));
+			stdout.println(String.format("latency p50 %s, p99 %s, max %s",
+					StatsCommand.millis(latency.getPercentile(50)), StatsCommand.millis(latency.getPercentile(99)),
+					StatsCommand.millis(latency.getMax())));
+			stdout.println(String.format("rejected %d, dropped, failed or spooled %d, not sent in time %d",
+					rejected, unsent.get(), Math.max(0, count - rejected - sent.get() - unsent.get())));
+			stdout.println(String.format("deferred by the rate limit %d, held while disconnected %d",
+					metrics.get(Metrics.Counter.DEFERRED) - deferred, metrics.get(Metrics.Counter.HELD) - held));
+			stdout.println("(deferred and held include concurrent notifications)");
+		}
+	}
+
 }
@@ -15,13 +15,52 @@
  */
 package com.gitblit.plugin.jabber;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gitblit.utils.StringUtils;
+
 public class Message {
 
+	/**
+	 * High priority messages are sent before normal ones when the rate
+	 * limit defers messages.
+	 */
+	public enum Priority {
+		NORMAL, HIGH
+	}
+
+	/**
+	 * Notified when a message has been handed to the connection and when
+	 * the plugin is done with it.
+	 */
+	public interface Listener {
+
+		/**
+		 * The message was handed to the connection.
+		 */
+		void sent(Message message);
+
+		/**
+		 * The plugin no longer holds the message: the room echoed it, it is
+		 * considered delivered, it was dropped or it was spooled again.
+		 */
+		void done(Message message);
+	}
+
+	private static final String XHTML_BODY = "<body xmlns=\"http://www.w3.org/1999/xhtml\">";
+
 	private String message;
 	private String html;
 
 	private transient String room;
 
+	private transient Priority priority = Priority.NORMAL;
+
+	private transient long queued;
+
+	private transient Listener listener;
+
 	public static Message create(String message, String html) {
 		return new Message(message, html);
 	}
@@ -30,6 +69,97 @@ public class Message {
         return new Message(message);
     }
 
+	/**
+	 * Combines several messages into one.
+	 *
+	 * The text bodies are joined by newlines. If any of the messages has an
+	 * XHTML body, the combined message gets an XHTML body as well in which
+	 * the plain text messages are escaped.
+	 *
+	 * @param messages
+	 * @return the combined message
+	 */
+	public static Message combine(List<Message> messages) {
+		if (messages.size() == 1) {
+			return messages.get(0);
+		}
+
+		boolean hasHtml = false;
+		for (Message message : messages) {
+			hasHtml |= message.getHtml() != null;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		StringBuilder html = hasHtml ? new StringBuilder(XHTML_BODY) : null;
+		for (int i = 0; i < messages.size(); i++) {
+			Message message = messages.get(i);
+			if (i > 0) {
+				sb.append('\n');
+			}
+			sb.append(message.getMessage());
+
+			if (html != null) {
+				if (i > 0) {
+					html.append("<br/>");
+				}
+				if (message.getHtml() == null) {
+					html.append(StringUtils.escapeForHtml(message.getMessage(), false).replace("\n", "<br/>"));
+				} else {
+					html.append(stripBody(message.getHtml()));
+				}
+			}
+		}
+
+		Message combined;
+		if (html == null) {
+			combined = new Message(sb.toString());
+		} else {
+			html.append("</body>");
+			combined = new Message(sb.toString(), html.toString());
+		}
+		final List<Message> parts = new ArrayList<>();
+		for (Message message : messages) {
+			if (message.getPriority() == Priority.HIGH) {
+				combined.priority(Priority.HIGH);
+			}
+			if (message.getListener() != null) {
+				parts.add(message);
+			}
+		}
+		if (!parts.isEmpty()) {
+			combined.setListener(new Listener() {
+				@Override
+				public void sent(Message message) {
+					for (Message part : parts) {
+						part.getListener().sent(part);
+					}
+				}
+
+				@Override
+				public void done(Message message) {
+					for (Message part : parts) {
+						part.getListener().done(part);
+					}
+				}
+			});
+		}
+		return combined;
+	}
+
+	/**
+	 * Returns the content of an XHTML body element.
+	 */
+	private static String stripBody(String html) {
+		String content = html.trim();
+		if (content.startsWith("<body")) {
+			content = content.substring(content.indexOf('>') + 1);
+		}
+		if (content.endsWith("</body>")) {
+			content = content.substring(0, content.length() - "</body>".length());
+		}
+		return content;
+	}
+
 	public Message(String message) {
 		this.message = message;
 	}
@@ -39,6 +169,18 @@ public class Message {
 		this.html = html;
 	}
 
+	/**
+	 * Returns a copy of this message with the same priority and listener but
+	 * without a room.
+	 *
+	 * @return the copy
+	 */
+	public Message copy() {
+		Message copy = new Message(message, html).priority(priority);
+		copy.setListener(listener);
+		return copy;
+	}
+
 	public Message room(String room) {
 		setRoom(room);
 		return this;
@@ -59,4 +201,41 @@ public class Message {
 	public void setRoom(String room) {
 		this.room = room;
 	}
+
+	public Message priority(Priority priority) {
+		this.priority = priority;
+		return this;
+	}
+
+	public Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Returns the {@link System#nanoTime()} the message was queued at.
+	 */
+	public long getQueued() {
+		return queued;
+	}
+
+	public void setQueued(long queued) {
+		this.queued = queued;
+	}
+
+	public Listener getListener() {
+		return listener;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Tells the listener that the plugin is done with the message.
+	 */
+	public void done() {
+		if (listener != null) {
+			listener.done(this);
+		}
+	}
 }
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded FIFO of outbound messages.
+ *
+ * Any number of threads may offer messages, a single {@link MessageSender}
+ * polls them. What happens when the queue is full is decided by the
+ * {@link OverflowPolicy}. Spilled messages are kept in memory or, if the
+ * queue has a {@link MessageSpool}, on disk.
+ */
+public class MessageQueue {
+
+	private static final long SPOOL_RETRY_DELAY = TimeUnit.SECONDS.toMillis(5);
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final int capacity;
+
+	private final OverflowPolicy policy;
+
+	private final ArrayDeque<Message> queue;
+
+	private final ArrayDeque<Message> spill;
+
+	private final MessageSpool spool;
+
+	private final ReentrantLock lock;
+
+	private final Condition notEmpty;
+
+	private final Condition notFull;
+
+	private long dropped;
+
+	private long spilled;
+
+	/**
+	 * The time in milliseconds before which the spool is not read again,
+	 * after reading it failed.
+	 */
+	private long spoolRetry;
+
+	public MessageQueue(int capacity, OverflowPolicy policy, MessageSpool spool) {
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		this.queue = new ArrayDeque<>(this.capacity);
+		this.spill = new ArrayDeque<>();
+		this.spool = spool;
+		this.lock = new ReentrantLock();
+		this.notEmpty = lock.newCondition();
+		this.notFull = lock.newCondition();
+	}
+
+	/**
+	 * Adds a message to the queue, applying the overflow policy if it is full.
+	 *
+	 * @param message
+	 * @return true if the message was queued
+	 */
+	public boolean offer(Message message) {
+		lock.lock();
+		try {
+			if (!isSpillEmpty()) {
+				// once spilling, everything goes to the spill to keep the order
+				addToSpill(message);
+				return true;
+			}
+			if (queue.size() < capacity) {
+				enqueue(message);
+				return true;
+			}
+
+			switch (policy) {
+			case DROP_OLDEST:
+				queue.pollFirst().done();
+				dropped++;
+				log.warn("Jabber queue is full ({} messages), dropped the oldest message", capacity);
+				enqueue(message);
+				return true;
+			case SPILL:
+				addToSpill(message);
+				return true;
+			default:
+				while (queue.size() >= capacity && isSpillEmpty()) {
+					notFull.await();
+				}
+				if (!isSpillEmpty()) {
+					// the queue was spilled while waiting
+					addToSpill(message);
+				} else {
+					enqueue(message);
+				}
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted while waiting for room in the Jabber queue, message spilled");
+			addToSpill(message);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a message to the spill, regardless of the overflow policy.
+	 *
+	 * This is used for messages which could not be delivered and should be
+	 * retried after the queued messages.
+	 *
+	 * @param message
+	 */
+	public void spill(Message message) {
+		lock.lock();
+		try {
+			addToSpill(message);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves the queued messages to the spill if the queue is full, e.g.
+	 * while they can not be sent, so offers neither block nor drop messages.
+	 * Further offers go to the spill as well until it is empty again, which
+	 * keeps the order.
+	 *
+	 * @return the number of messages moved
+	 */
+	public int spillWhenFull() {
+		lock.lock();
+		try {
+			if (queue.size() < capacity || !isSpillEmpty()) {
+				// spilled messages are younger, the queued ones can not follow
+				return 0;
+			}
+			int moved = queue.size();
+			Message message;
+			while ((message = queue.pollFirst()) != null) {
+				addToSpill(message);
+			}
+			notFull.signalAll();
+			return moved;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void enqueue(Message message) {
+		queue.addLast(message);
+		notEmpty.signal();
+	}
+
+	private void addToSpill(Message message) {
+		if (spool != null) {
+			try {
+				spool.append(message);
+			} catch (IOException e) {
+				log.error("Failed to spool message, keeping it in memory", e);
+				spill.addLast(message);
+			}
+		} else {
+			spill.addLast(message);
+		}
+		spilled++;
+		notEmpty.signal();
+	}
+
+	private Message pollSpill() {
+		Message message = spill.pollFirst();
+		if (message != null || !isSpoolReadable()) {
+			return message;
+		}
+		try {
+			return spool.poll();
+		} catch (IOException e) {
+			log.error("Failed to read message from spool, retrying in {} ms", SPOOL_RETRY_DELAY, e);
+			spoolRetry = System.currentTimeMillis() + SPOOL_RETRY_DELAY;
+			return null;
+		}
+	}
+
+	private boolean isSpoolReadable() {
+		return spool != null && !spool.isEmpty() && System.currentTimeMillis() >= spoolRetry;
+	}
+
+	private boolean isSpillEmpty() {
+		return spill.isEmpty() && (spool == null || spool.isEmpty());
+	}
+
+	private int spillSize() {
+		return spill.size() + (spool == null ? 0 : spool.size());
+	}
+
+	/**
+	 * Retrieves and removes the oldest message, waiting up to the specified
+	 * time for one to arrive.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return the oldest message or null if none arrived in time
+	 * @throws InterruptedException
+	 */
+	public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+		lock.lock();
+		try {
+			long nanos = unit.toNanos(timeout);
+			while (queue.isEmpty() && spill.isEmpty() && !isSpoolReadable()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			Message message = queue.pollFirst();
+			if (message == null) {
+				message = pollSpill();
+			} else if (!isSpillEmpty()) {
+				// spilled messages are younger than queued ones
+				Message spilled = pollSpill();
+				if (spilled != null) {
+					queue.addLast(spilled);
+				}
+			}
+			notFull.signal();
+			return message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves and removes the oldest message without waiting.
+	 *
+	 * @return the oldest message or null if the queue is empty
+	 */
+	public Message poll() {
+		try {
+			return poll(0, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			// does not wait
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Removes the messages which are held in memory, so they can be
+	 * persisted. Messages in the spool stay there.
+	 *
+	 * @return the messages, oldest first
+	 */
+	public List<Message> drain() {
+		lock.lock();
+		try {
+			List<Message> messages = new ArrayList<>(queue.size() + spill.size());
+			messages.addAll(queue);
+			messages.addAll(spill);
+			queue.clear();
+			spill.clear();
+			notFull.signalAll();
+			return messages;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages waiting to be sent, including spilled ones.
+	 *
+	 * @return the queue depth
+	 */
+	public int depth() {
+		lock.lock();
+		try {
+			return queue.size() + spillSize();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getSpilled() {
+		lock.lock();
+		try {
+			return spilled;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single writer which drains the {@link MessageQueue} and sends the
+ * messages one at a time on a dedicated thread.
+ *
+ * Messages for the same room are merged by the {@link Coalescer} and paced
+ * by the {@link RateLimiter} before they are sent. While there is no
+ * connection to the server, messages are held in a bounded outbox which is
+ * flushed in order once the connection is back.
+ */
+public class MessageSender implements Runnable {
+
+	private static final long DRAIN_POLL_INTERVAL = 100;
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final Jabber jabber;
+
+	final MessageQueue queue;
+
+	final Coalescer coalescer;
+
+	final RateLimiter limiter;
+
+	final int outboxCapacity;
+
+	private final ArrayDeque<Message> outbox;
+
+	private final Queue<Message> resent;
+
+	private volatile boolean running;
+
+	private volatile boolean draining;
+
+	private volatile long drainDeadline;
+
+	private Thread thread;
+
+	public MessageSender(Jabber jabber, MessageQueue queue, Coalescer coalescer, RateLimiter limiter, int outboxCapacity) {
+		this.jabber = jabber;
+		this.queue = queue;
+		this.coalescer = coalescer;
+		this.limiter = limiter;
+		this.outboxCapacity = Math.max(1, outboxCapacity);
+		this.outbox = new ArrayDeque<>();
+		this.resent = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Sends messages again before the messages held in the outbox. May be
+	 * called from any thread.
+	 *
+	 * @param messages the messages with their rooms, oldest first
+	 */
+	public void resend(List<Message> messages) {
+		jabber.getMetrics().add(Metrics.Counter.RESENT, messages.size());
+		resent.addAll(messages);
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "jabber-sender");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the sender after draining it.
+	 *
+	 * The sender keeps sending the queued, merged, deferred and held
+	 * messages until there are none left, the deadline has passed or there
+	 * is no connection to send them with. Queued messages are batched per
+	 * room while draining, even if coalescing is disabled.
+	 *
+	 * @param deadline the time in milliseconds at which to stop draining
+	 * @return the messages taken from the queue which were not sent, oldest
+	 *         first
+	 */
+	public synchronized List<Message> stop(long deadline) {
+		if (thread == null) {
+			return Collections.emptyList();
+		}
+		drainDeadline = deadline;
+		draining = true;
+		try {
+			thread.join(Math.max(1, deadline - System.currentTimeMillis()) + TimeUnit.SECONDS.toMillis(1));
+			if (thread.isAlive()) {
+				running = false;
+				thread.interrupt();
+				thread.join(TimeUnit.SECONDS.toMillis(5));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			log.warn("Jabber sender did not stop, the messages it holds are lost");
+			thread = null;
+			return Collections.emptyList();
+		}
+		thread = null;
+		draining = false;
+		return takeLeftovers();
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			if (draining && isDrained()) {
+				break;
+			}
+			try {
+				step();
+			} catch (InterruptedException e) {
+				break;
+			} catch (RuntimeException e) {
+				// keep the only sender alive, the failed message is skipped
+				log.error("Unexpected error in the Jabber sender", e);
+				try {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes the next messages from the queue and sends those which are due.
+	 */
+	private void step() throws InterruptedException {
+		takeResent();
+		if (!outbox.isEmpty() && jabber.isConnected()) {
+			flushOutbox();
+		} else if (outbox.size() >= outboxCapacity) {
+			// leave further messages queued until the connection is back, a
+			// full queue goes to the spool so pushes are not blocked
+			int spilled = queue.spillWhenFull();
+			if (spilled > 0) {
+				log.warn("Jabber outbox and queue are full, spilled {} queued messages", spilled);
+			}
+			Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long wait = TimeUnit.SECONDS.toMillis(1);
+		if (!coalescer.isEmpty()) {
+			wait = Math.min(wait, coalescer.nextDeadline() - now);
+		}
+		if (!limiter.isEmpty()) {
+			wait = Math.min(wait, limiter.nextReady(now) - now);
+		}
+		if (draining) {
+			// check the deadline often
+			wait = Math.min(wait, DRAIN_POLL_INTERVAL);
+		}
+		wait = Math.max(0, wait);
+
+		if (limiter.size() >= queue.getCapacity()) {
+			// leave further messages queued until the deferred ones are sent
+			Thread.sleep(wait);
+		} else {
+			Message message = queue.poll(wait, TimeUnit.MILLISECONDS);
+			if (message != null) {
+				accept(message);
+				if (draining) {
+					// batch everything which is queued already
+					for (int i = 0; i < queue.getCapacity() && (message = queue.poll()) != null; i++) {
+						accept(message);
+					}
+				}
+			}
+		}
+
+		now = System.currentTimeMillis();
+		for (Message merged : draining ? coalescer.drainAll() : coalescer.drainDue(now)) {
+			add(merged.getRoom(), merged);
+		}
+		Message ready;
+		while ((ready = limiter.poll(now)) != null) {
+			deliver(ready);
+		}
+	}
+
+	private void accept(Message message) {
+		if (message.getQueued() > 0) {
+			jabber.getMetrics().record(Metrics.Stage.QUEUE, System.nanoTime() - message.getQueued());
+		}
+		String room = jabber.getRoom(message);
+		if (coalescer.isEnabled() || draining) {
+			Message merged = coalescer.add(room, message, System.currentTimeMillis());
+			if (merged != null) {
+				add(room, merged);
+			}
+		} else {
+			add(room, message);
+		}
+	}
+
+	/**
+	 * Returns true if draining is complete: everything was sent, the
+	 * deadline has passed or there is no connection.
+	 */
+	private boolean isDrained() {
+		if (System.currentTimeMillis() >= drainDeadline || !jabber.isConnected()) {
+			return true;
+		}
+		return resent.isEmpty() && outbox.isEmpty() && coalescer.isEmpty() && limiter.isEmpty() && queue.depth() == 0;
+	}
+
+	/**
+	 * Removes the messages which were taken from the queue but not sent,
+	 * once the sender thread has stopped.
+	 */
+	private List<Message> takeLeftovers() {
+		List<Message> leftovers = new ArrayList<>();
+		Message message;
+		while ((message = resent.poll()) != null) {
+			leftovers.add(message);
+		}
+		leftovers.addAll(outbox);
+		outbox.clear();
+		for (Message merged : coalescer.drainAll()) {
+			limiter.add(merged.getRoom(), merged);
+		}
+		leftovers.addAll(limiter.drainAll());
+		return leftovers;
+	}
+
+	private void add(String room, Message message) {
+		if (!limiter.add(room, message)) {
+			jabber.getMetrics().increment(Metrics.Counter.DEFERRED);
+		}
+	}
+
+	private void deliver(Message message) {
+		if (!outbox.isEmpty() || !jabber.isConnected()) {
+			// keep the order of messages held back earlier
+			hold(message);
+			return;
+		}
+		try {
+			jabber.send(message);
+		} catch (IOException e) {
+			// the connection dropped before the supervisor noticed
+			hold(message);
+		} catch (RuntimeException e) {
+			log.error("Unexpected error while sending to Jabber!", e);
+			message.done();
+		}
+	}
+
+	/**
+	 * Moves messages to be sent again to the front of the outbox, they are
+	 * older than the messages held there.
+	 */
+	private void takeResent() {
+		if (resent.isEmpty()) {
+			return;
+		}
+		List<Message> messages = new ArrayList<>();
+		Message message;
+		while ((message = resent.poll()) != null) {
+			messages.add(message);
+		}
+		for (int i = messages.size() - 1; i >= 0; i--) {
+			outbox.addFirst(messages.get(i));
+		}
+		while (outbox.size() > outboxCapacity) {
+			queue.spill(outbox.pollFirst());
+		}
+	}
+
+	private void hold(Message message) {
+		jabber.getMetrics().increment(Metrics.Counter.HELD);
+		if (outbox.size() >= outboxCapacity) {
+			// the spill is retried after the queued messages
+			queue.spill(outbox.pollFirst());
+			log.warn("Jabber outbox is full ({} messages), spilled the oldest message", outboxCapacity);
+		}
+		outbox.addLast(message);
+	}
+
+	private void flushOutbox() {
+		log.info("Sending {} messages held while disconnected", outbox.size());
+		while (!outbox.isEmpty()) {
+			Message message = outbox.peekFirst();
+			try {
+				jabber.send(message);
+			} catch (IOException e) {
+				// lost the connection again, keep the rest
+				return;
+			} catch (RuntimeException e) {
+				log.error("Unexpected error while sending to Jabber!", e);
+				message.done();
+			}
+			outbox.pollFirst();
+		}
+	}
+}
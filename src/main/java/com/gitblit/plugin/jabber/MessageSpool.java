@@ -0,0 +1,587 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only, segmented on-disk FIFO of messages.
+ *
+ * Messages are appended to the newest segment file and read from the oldest.
+ * A message read from the spool is acknowledged once the plugin is done with
+ * it, see {@link Message.Listener#done(Message)}. The position of the oldest
+ * message which was not acknowledged is recorded in a checkpoint file, so the
+ * messages which were not delivered before a crash or restart are replayed.
+ * Segments are deleted once all their messages have been acknowledged. Only
+ * the record being read or written and the positions of the unacknowledged
+ * messages are held on the heap.
+ *
+ * Each record is stored as its length, a CRC32 of the payload and the
+ * payload, so a record torn by a crash is detected and discarded on open. A
+ * segment which is found corrupt while reading is moved aside with the
+ * suffix ".corrupt" and reading goes on with the next segment.
+ */
+public class MessageSpool implements Closeable {
+
+	private static final String SEGMENT_PREFIX = "spool-";
+
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private static final String CHECKPOINT = "checkpoint";
+
+	private static final String CORRUPT_SUFFIX = ".corrupt";
+
+	private static final int HEADER_LENGTH = 8;
+
+	private static final int CHECKPOINT_INTERVAL = 64;
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final File folder;
+
+	private final long segmentSize;
+
+	private long readSegment;
+
+	private long readPosition;
+
+	private FileChannel reader;
+
+	private long writeSegment;
+
+	private long writePosition;
+
+	private FileChannel writer;
+
+	private long firstSegment;
+
+	private int size;
+
+	private long nextSequence;
+
+	private final TreeMap<Long, Position> unacked;
+
+	private int uncheckpointed;
+
+	private MessageSpool(File folder, long segmentSize) {
+		this.folder = folder;
+		this.segmentSize = segmentSize;
+		this.unacked = new TreeMap<>();
+	}
+
+	/**
+	 * Opens the spool in the folder, creating it if it does not exist.
+	 *
+	 * @param folder
+	 * @param segmentSize
+	 * @return the spool
+	 * @throws IOException
+	 */
+	public static MessageSpool open(File folder, long segmentSize) throws IOException {
+		MessageSpool spool = new MessageSpool(folder, Math.max(HEADER_LENGTH, segmentSize));
+		spool.recover();
+		return spool;
+	}
+
+	/**
+	 * Opens the spool again after it was closed, e.g. when the plugin is
+	 * started again. Messages which were taken and not acknowledged before
+	 * the close are replayed.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void reopen() throws IOException {
+		if (writer.isOpen()) {
+			return;
+		}
+		// sequence numbers go on, receipts from before the close are ignored
+		unacked.clear();
+		uncheckpointed = 0;
+		size = 0;
+		writePosition = 0;
+		recover();
+	}
+
+	private void recover() throws IOException {
+		folder.mkdirs();
+		if (!folder.isDirectory()) {
+			throw new IOException("Can not create spool folder " + folder);
+		}
+
+		TreeSet<Long> sequences = new TreeSet<>();
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						sequences.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						log.warn("Ignoring unexpected file {} in the spool", file);
+					}
+				}
+			}
+		}
+
+		readSegment = sequences.isEmpty() ? 1 : sequences.first();
+		readPosition = 0;
+		readCheckpoint();
+
+		// segments before the checkpoint have been acknowledged
+		for (Long sequence : sequences) {
+			if (sequence < readSegment) {
+				segmentFile(sequence).delete();
+			}
+		}
+		firstSegment = readSegment;
+
+		writeSegment = sequences.isEmpty() ? readSegment : Math.max(readSegment, sequences.last());
+		for (long sequence = readSegment; sequence <= writeSegment; sequence++) {
+			if (!segmentFile(sequence).exists()) {
+				continue;
+			}
+			long position = sequence == readSegment ? readPosition : 0;
+			try (FileChannel channel = FileChannel.open(segmentFile(sequence).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				if (position > channel.size()) {
+					log.warn("Spool checkpoint is beyond the end of {}", segmentFile(sequence));
+					position = channel.size();
+					readPosition = position;
+				}
+				while (true) {
+					int length = validRecordLength(channel, position);
+					if (length < 0) {
+						break;
+					}
+					position += HEADER_LENGTH + length;
+					size++;
+				}
+				if (position < channel.size()) {
+					log.warn("Discarding torn record at {} of {}", position, segmentFile(sequence));
+					channel.truncate(position);
+				}
+			}
+			if (sequence == writeSegment) {
+				writePosition = position;
+			}
+		}
+
+		writer = FileChannel.open(segmentFile(writeSegment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		reader = FileChannel.open(segmentFile(readSegment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ);
+
+		if (size > 0) {
+			log.info("Jabber spool {} holds {} undelivered messages", folder, size);
+		}
+	}
+
+	/**
+	 * Appends a message to the spool. The plugin is done with the message
+	 * once it is spooled.
+	 *
+	 * @param message
+	 * @throws IOException
+	 */
+	public synchronized void append(Message message) throws IOException {
+		byte[] room = bytes(message.getRoom());
+		byte[] text = bytes(message.getMessage());
+		byte[] html = bytes(message.getHtml());
+		int length = 12 + length(room) + length(text) + length(html);
+
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		put(payload, room);
+		put(payload, text);
+		put(payload, html);
+		payload.flip();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, length);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(length);
+		header.putInt((int) crc.getValue());
+		header.flip();
+
+		if (writePosition > 0 && writePosition + HEADER_LENGTH + length > segmentSize) {
+			roll();
+		}
+		writePosition += write(writer, header, writePosition);
+		writePosition += write(writer, payload, writePosition);
+		size++;
+		// the spooled copy replaces the message, e.g. one taken from here
+		message.done();
+	}
+
+	/**
+	 * Removes and returns the oldest message. The message is replayed after
+	 * a restart until it is acknowledged, which happens when the plugin is
+	 * done with it.
+	 *
+	 * @return the oldest message or null if the spool is empty
+	 * @throws IOException
+	 */
+	public synchronized Message poll() throws IOException {
+		while (size > 0) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			if (read(reader, header, readPosition) < HEADER_LENGTH) {
+				if (readSegment >= writeSegment) {
+					// counted records must be in the last segment
+					log.error("Jabber spool is inconsistent, {} messages are missing", size);
+					size = 0;
+					return null;
+				}
+				nextReadSegment();
+				continue;
+			}
+			header.flip();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			ByteBuffer payload = readPayload(length, checksum);
+			if (payload == null) {
+				quarantine();
+				continue;
+			}
+
+			long sequence = nextSequence++;
+			unacked.put(sequence, new Position(readSegment, readPosition));
+			readPosition += HEADER_LENGTH + length;
+			size--;
+
+			String room = string(payload);
+			String text = string(payload);
+			String html = string(payload);
+			Message message = new Message(text, html).room(room);
+			message.setListener(new Receipt(sequence));
+			return message;
+		}
+		return null;
+	}
+
+	/**
+	 * Acknowledges a message taken from the spool, so it is not replayed.
+	 * Messages may be acknowledged in any order, the checkpoint only moves
+	 * past messages which were all acknowledged.
+	 *
+	 * @param sequence the sequence number of the message
+	 * @throws IOException
+	 */
+	public synchronized void ack(long sequence) throws IOException {
+		if (unacked.remove(sequence) == null || !writer.isOpen()) {
+			// acknowledged already or closed, it is replayed
+			return;
+		}
+		if (++uncheckpointed >= CHECKPOINT_INTERVAL || (unacked.isEmpty() && size == 0)) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Returns the number of messages in the spool which were not taken yet.
+	 *
+	 * @return the number of messages
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of messages taken from the spool which were not
+	 * acknowledged yet.
+	 *
+	 * @return the number of messages
+	 */
+	public synchronized int getUnacked() {
+		return unacked.size();
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Records the position of the oldest unacknowledged message, so that
+	 * messages which have been acknowledged are not replayed, and deletes
+	 * the segments before it.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint() throws IOException {
+		writer.force(false);
+
+		long ackSegment = readSegment;
+		long ackPosition = readPosition;
+		if (!unacked.isEmpty()) {
+			Position oldest = unacked.firstEntry().getValue();
+			ackSegment = oldest.segment;
+			ackPosition = oldest.position;
+		}
+
+		File tmp = new File(folder, CHECKPOINT + ".tmp");
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putLong(ackSegment);
+		buffer.putLong(ackPosition);
+		buffer.flip();
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			write(channel, buffer, 0);
+			channel.force(true);
+		}
+		Files.move(tmp.toPath(), new File(folder, CHECKPOINT).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		uncheckpointed = 0;
+
+		for (; firstSegment < ackSegment; firstSegment++) {
+			segmentFile(firstSegment).delete();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!unacked.isEmpty()) {
+			log.info("{} messages taken from the Jabber spool were not acknowledged, they are replayed on start", unacked.size());
+		}
+		try {
+			checkpoint();
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	private void readCheckpoint() throws IOException {
+		File file = new File(folder, CHECKPOINT);
+		if (!file.exists()) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(16);
+			if (read(channel, buffer, 0) == 16) {
+				buffer.flip();
+				readSegment = buffer.getLong();
+				readPosition = buffer.getLong();
+			} else {
+				log.warn("Ignoring truncated spool checkpoint {}", file);
+			}
+		}
+	}
+
+	private void roll() throws IOException {
+		writer.force(false);
+		writer.close();
+		writeSegment++;
+		writePosition = 0;
+		writer = FileChannel.open(segmentFile(writeSegment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Reads the payload of the record at the read position.
+	 *
+	 * @return the payload or null if the record is corrupt
+	 */
+	private ByteBuffer readPayload(int length, int checksum) throws IOException {
+		if (length < 12 || readPosition + HEADER_LENGTH + length > reader.size()) {
+			return null;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		read(reader, payload, readPosition + HEADER_LENGTH);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, length);
+		if ((int) crc.getValue() != checksum) {
+			return null;
+		}
+		payload.flip();
+		return payload;
+	}
+
+	/**
+	 * Moves the segment being read aside and continues with the next one.
+	 * The messages in the rest of the segment are lost.
+	 */
+	private void quarantine() throws IOException {
+		File file = segmentFile(readSegment);
+		File corrupt = new File(folder, file.getName() + CORRUPT_SUFFIX);
+		log.error("Jabber spool segment {} is corrupt at {}, moved to {}", file, readPosition, corrupt);
+		if (readSegment == writeSegment) {
+			roll();
+		}
+		reader.close();
+		if (!file.renameTo(corrupt)) {
+			log.error("Failed to move {} aside", file);
+		}
+		readSegment++;
+		readPosition = 0;
+		reader = FileChannel.open(segmentFile(readSegment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ);
+
+		// count what is left, the corrupt segment may have held any number
+		size = 0;
+		for (long sequence = readSegment; sequence <= writeSegment; sequence++) {
+			size += countRecords(sequence);
+		}
+		checkpoint();
+	}
+
+	private int countRecords(long sequence) throws IOException {
+		File file = segmentFile(sequence);
+		if (!file.exists()) {
+			return 0;
+		}
+		int count = 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long position = 0;
+			int length;
+			while ((length = validRecordLength(channel, position)) >= 0) {
+				position += HEADER_LENGTH + length;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void nextReadSegment() throws IOException {
+		reader.close();
+		readSegment++;
+		readPosition = 0;
+		reader = FileChannel.open(segmentFile(readSegment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ);
+		// deletes the segment if all its messages were acknowledged
+		checkpoint();
+	}
+
+	/**
+	 * Returns the payload length of the record at the position or -1 if there
+	 * is no complete, valid record.
+	 */
+	private int validRecordLength(FileChannel channel, long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		if (read(channel, header, position) < HEADER_LENGTH) {
+			return -1;
+		}
+		header.flip();
+		int length = header.getInt();
+		int checksum = header.getInt();
+		if (length < 12 || position + HEADER_LENGTH + length > channel.size()) {
+			return -1;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		read(channel, payload, position + HEADER_LENGTH);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, length);
+		return (int) crc.getValue() == checksum ? length : -1;
+	}
+
+	private File segmentFile(long sequence) {
+		return new File(folder, String.format("%s%019d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+	}
+
+	private static int read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int total = 0;
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + total);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int total = 0;
+		while (buffer.hasRemaining()) {
+			total += channel.write(buffer, position + total);
+		}
+		return total;
+	}
+
+	private static byte[] bytes(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int length(byte[] value) {
+		return value == null ? 0 : value.length;
+	}
+
+	private static void put(ByteBuffer buffer, byte[] value) {
+		if (value == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(value.length);
+			buffer.put(value);
+		}
+	}
+
+	/**
+	 * The start of a record.
+	 */
+	private static class Position {
+
+		final long segment;
+
+		final long position;
+
+		Position(long segment, long position) {
+			this.segment = segment;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * Acknowledges a message taken from the spool when the plugin is done
+	 * with it.
+	 */
+	private class Receipt implements Message.Listener {
+
+		final long sequence;
+
+		Receipt(long sequence) {
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void sent(Message message) {
+		}
+
+		@Override
+		public void done(Message message) {
+			try {
+				ack(sequence);
+			} catch (IOException e) {
+				log.error("Failed to checkpoint jabber spool", e);
+			}
+		}
+	}
+
+	private static String string(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return value;
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message format which is parsed once and renders the plain text and the
+ * XHTML body of a message in one pass.
+ *
+ * Templates are plain text with these placeholders:
+ * <ul>
+ * <li><code>${name}</code> - the value of a variable</li>
+ * <li><code>*${name}*</code> - the value in bold</li>
+ * <li><code>[${label}](${url})</code> - a link, rendered as "url label" in
+ * plain text</li>
+ * </ul>
+ * Values are escaped in the XHTML body.
+ */
+public class MessageTemplate {
+
+	/**
+	 * The variables of the templates.
+	 */
+	public enum Var {
+		USER, ACTION, REF, REF_TYPE, REF_URL, REPO, REPO_URL, COMMIT_URL, SHORT_ID, MESSAGE, COMPARE_URL, COMPARE_TEXT, SUMMARY;
+
+		final String key;
+
+		Var() {
+			// REF_TYPE is ${refType}
+			StringBuilder sb = new StringBuilder();
+			boolean upper = false;
+			for (char c : name().toCharArray()) {
+				if (c == '_') {
+					upper = true;
+				} else {
+					sb.append(upper ? c : Character.toLowerCase(c));
+					upper = false;
+				}
+			}
+			this.key = sb.toString();
+		}
+
+		static Var of(String key) {
+			for (Var var : values()) {
+				if (var.key.equals(key)) {
+					return var;
+				}
+			}
+			throw new IllegalArgumentException("Unknown variable ${" + key + "}");
+		}
+	}
+
+	private final String source;
+
+	private final Segment[] segments;
+
+	private MessageTemplate(String source, List<Segment> segments) {
+		this.source = source;
+		this.segments = segments.toArray(new Segment[segments.size()]);
+	}
+
+	/**
+	 * Parses a template.
+	 *
+	 * @param template
+	 * @return the template
+	 * @throws IllegalArgumentException if the template is malformed
+	 */
+	public static MessageTemplate parse(String template) {
+		List<Segment> segments = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+		int i = 0;
+		while (i < template.length()) {
+			Segment segment = null;
+			int end = i;
+			char c = template.charAt(i);
+			if (c == '$' && template.startsWith("${", i)) {
+				end = closing(template, i + 2, '}');
+				segment = new Value(Var.of(template.substring(i + 2, end)), false);
+				end++;
+			} else if (c == '*' && template.startsWith("*${", i)) {
+				int close = closing(template, i + 3, '}');
+				if (close + 1 < template.length() && template.charAt(close + 1) == '*') {
+					segment = new Value(Var.of(template.substring(i + 3, close)), true);
+					end = close + 2;
+				}
+			} else if (c == '[' && template.startsWith("[${", i)) {
+				int close = closing(template, i + 3, '}');
+				if (template.startsWith("](${", close + 1)) {
+					int urlClose = closing(template, close + 5, '}');
+					if (urlClose + 1 < template.length() && template.charAt(urlClose + 1) == ')') {
+						segment = new Link(Var.of(template.substring(i + 3, close)), Var.of(template.substring(close + 5, urlClose)));
+						end = urlClose + 2;
+					}
+				}
+			}
+
+			if (segment == null) {
+				literal.append(c);
+				i++;
+			} else {
+				if (literal.length() > 0) {
+					segments.add(new Literal(literal.toString()));
+					literal.setLength(0);
+				}
+				segments.add(segment);
+				i = end;
+			}
+		}
+		if (literal.length() > 0) {
+			segments.add(new Literal(literal.toString()));
+		}
+		return new MessageTemplate(template, segments);
+	}
+
+	private static int closing(String template, int from, char c) {
+		int index = template.indexOf(c, from);
+		if (index < 0) {
+			throw new IllegalArgumentException("Unterminated placeholder in " + template);
+		}
+		return index;
+	}
+
+	/**
+	 * Renders the template.
+	 *
+	 * @param values the values indexed by {@link Var#ordinal()}
+	 * @param text the plain text is appended here
+	 * @param html the XHTML is appended here
+	 */
+	public void render(String[] values, StringBuilder text, StringBuilder html) {
+		for (Segment segment : segments) {
+			segment.render(values, text, html);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return source;
+	}
+
+	/**
+	 * Appends a value with the XML special characters escaped.
+	 */
+	static void escape(String value, StringBuilder html) {
+		if (value == null) {
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				html.append("&amp;");
+				break;
+			case '<':
+				html.append("&lt;");
+				break;
+			case '>':
+				html.append("&gt;");
+				break;
+			case '"':
+				html.append("&quot;");
+				break;
+			case '\'':
+				html.append("&#39;");
+				break;
+			default:
+				html.append(c);
+			}
+		}
+	}
+
+	private interface Segment {
+		void render(String[] values, StringBuilder text, StringBuilder html);
+	}
+
+	private static class Literal implements Segment {
+
+		final String text;
+
+		final String html;
+
+		Literal(String text) {
+			this.text = text;
+			StringBuilder sb = new StringBuilder();
+			escape(text, sb);
+			this.html = sb.toString();
+		}
+
+		@Override
+		public void render(String[] values, StringBuilder text, StringBuilder html) {
+			text.append(this.text);
+			html.append(this.html);
+		}
+	}
+
+	private static class Value implements Segment {
+
+		final int index;
+
+		final boolean bold;
+
+		Value(Var var, boolean bold) {
+			this.index = var.ordinal();
+			this.bold = bold;
+		}
+
+		@Override
+		public void render(String[] values, StringBuilder text, StringBuilder html) {
+			String value = values[index];
+			if (value != null) {
+				text.append(value);
+			}
+			if (bold) {
+				html.append("<b>");
+				escape(value, html);
+				html.append("</b>");
+			} else {
+				escape(value, html);
+			}
+		}
+	}
+
+	private static class Link implements Segment {
+
+		final int label;
+
+		final int url;
+
+		Link(Var label, Var url) {
+			this.label = label.ordinal();
+			this.url = url.ordinal();
+		}
+
+		@Override
+		public void render(String[] values, StringBuilder text, StringBuilder html) {
+			String labelValue = values[label];
+			String urlValue = values[url];
+			if (urlValue != null) {
+				text.append(urlValue).append(' ');
+			}
+			if (labelValue != null) {
+				text.append(labelValue);
+			}
+			html.append("<a href=\"");
+			escape(urlValue, html);
+			html.append("\">");
+			escape(labelValue, html);
+			html.append("</a>");
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the notification pipeline.
+ *
+ * Recording does not lock, so the metrics are always on. They are shown by
+ * the "jabber stats" command and, if enabled, published over JMX.
+ */
+public class Metrics implements MetricsMXBean {
+
+	/**
+	 * The stages of a notification whose latency is recorded.
+	 */
+	public enum Stage {
+		/** the receive hook, on the pushing client's thread */
+		HOOK,
+		/** walking the commits and formatting the messages of a push */
+		RENDER,
+		/** from queueing a message until the sender takes it */
+		QUEUE,
+		/** joining the room if needed and handing the message to the connection */
+		SEND;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	/**
+	 * The events which are counted.
+	 */
+	public enum Counter {
+		/** pushes accepted for rendering */
+		PUSHES,
+		/** pushes not posted because the render queue was full */
+		RENDER_REJECTED,
+		/** messages put on the queue */
+		QUEUED,
+		/** messages sent, after coalescing */
+		SENT,
+		/** messages which failed to send while connected */
+		FAILED,
+		/** messages delayed by the rate limit */
+		DEFERRED,
+		/** messages held back while disconnected */
+		HELD,
+		/** messages sent again after a connection was lost */
+		RESENT,
+		/** notifications shortened or suppressed as already announced */
+		DEDUPED,
+		/** pushes collected into digests */
+		DIGESTED,
+		/** ref changes not posted because of a notification filter */
+		FILTERED;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase().replace('_', '-');
+		}
+	}
+
+	private static final int MAX_ROOMS = 1000;
+
+	private final MessageQueue queue;
+
+	private final LatencyHistogram[] latencies;
+
+	private final AtomicLongArray counters;
+
+	private final ConcurrentMap<String, AtomicLong> rooms;
+
+	private volatile long started;
+
+	public Metrics(MessageQueue queue) {
+		this.queue = queue;
+		this.latencies = new LatencyHistogram[Stage.values().length];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+		this.counters = new AtomicLongArray(Counter.values().length);
+		this.rooms = new ConcurrentHashMap<>();
+		this.started = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records the latency of a stage.
+	 *
+	 * @param stage
+	 * @param nanos
+	 */
+	public void record(Stage stage, long nanos) {
+		latencies[stage.ordinal()].record(nanos);
+	}
+
+	public void increment(Counter counter) {
+		counters.incrementAndGet(counter.ordinal());
+	}
+
+	public void add(Counter counter, long delta) {
+		counters.addAndGet(counter.ordinal(), delta);
+	}
+
+	/**
+	 * Counts a message sent to a room.
+	 *
+	 * @param room
+	 */
+	public void sent(String room) {
+		increment(Counter.SENT);
+		if (room == null) {
+			return;
+		}
+		AtomicLong count = rooms.get(room);
+		if (count == null) {
+			if (rooms.size() >= MAX_ROOMS) {
+				return;
+			}
+			AtomicLong newCount = new AtomicLong();
+			count = rooms.putIfAbsent(room, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	public LatencyHistogram getLatency(Stage stage) {
+		return latencies[stage.ordinal()];
+	}
+
+	public long get(Counter counter) {
+		return counters.get(counter.ordinal());
+	}
+
+	/**
+	 * Returns the number of messages sent per room.
+	 */
+	public Map<String, Long> getRooms() {
+		Map<String, Long> counts = new TreeMap<>();
+		for (Map.Entry<String, AtomicLong> entry : rooms.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the time the metrics were started or last reset.
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * Clears all counters and latencies.
+	 */
+	public void reset() {
+		for (LatencyHistogram latency : latencies) {
+			latency.reset();
+		}
+		for (int i = 0; i < counters.length(); i++) {
+			counters.set(i, 0);
+		}
+		rooms.clear();
+		started = System.currentTimeMillis();
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (Counter counter : Counter.values()) {
+			values.put(counter.toString(), get(counter));
+		}
+		values.put("dropped", queue.getDropped());
+		values.put("spilled", queue.getSpilled());
+		return Collections.unmodifiableMap(values);
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queue.depth();
+	}
+
+	@Override
+	public Map<String, Long> getLatencyP50() {
+		return getLatencies(50);
+	}
+
+	@Override
+	public Map<String, Long> getLatencyP99() {
+		return getLatencies(99);
+	}
+
+	@Override
+	public Map<String, Long> getLatencyMax() {
+		return getLatencies(100);
+	}
+
+	private Map<String, Long> getLatencies(double percentile) {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram latency = getLatency(stage);
+			values.put(stage.toString(), percentile >= 100 ? latency.getMax() : latency.getPercentile(percentile));
+		}
+		return Collections.unmodifiableMap(values);
+	}
+}
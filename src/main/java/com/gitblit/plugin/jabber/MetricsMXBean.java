@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.Map;
+
+/**
+ * The plugin metrics as published over JMX. Latencies are in microseconds.
+ */
+public interface MetricsMXBean {
+
+	Map<String, Long> getCounters();
+
+	int getQueueDepth();
+
+	Map<String, Long> getLatencyP50();
+
+	Map<String, Long> getLatencyP99();
+
+	Map<String, Long> getLatencyMax();
+}
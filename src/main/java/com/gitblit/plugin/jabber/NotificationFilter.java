@@ -0,0 +1,349 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import com.gitblit.plugin.jabber.PushEvent.RefChange;
+
+/**
+ * Decides which ref changes and commits of a repository are posted.
+ *
+ * A filter has glob patterns for ref names, authors, committers and changed
+ * paths. '*' and '?' match within a path segment and '**' matches across
+ * segments. Patterns starting with '!' exclude, the others include: a value
+ * passes if it matches no exclude and, if there are includes, at least one
+ * include. Refs are matched by their full and their short name, a ref is
+ * excluded if either name matches an exclude and included if either matches
+ * an include. Authors and committers are matched as "Name &lt;email&gt;"
+ * ignoring case.
+ *
+ * The patterns are compiled when the settings are read. Commit rules are
+ * applied by a {@link RevFilter} during the commit walk, path rules through
+ * a {@link TreeFilter} on the diff of each commit against its first parent,
+ * so commits which are not posted are neither listed nor counted.
+ */
+public class NotificationFilter {
+
+	/**
+	 * The filter which posts everything.
+	 */
+	public static final NotificationFilter ALL = new NotificationFilter(Collections.<Globs>emptyList(),
+			Collections.<Globs>emptyList(), Collections.<Globs>emptyList(), Collections.<Globs>emptyList());
+
+	private final List<Globs> refs;
+
+	private final List<Globs> authors;
+
+	private final List<Globs> committers;
+
+	private final List<Globs> paths;
+
+	private NotificationFilter(List<Globs> refs, List<Globs> authors, List<Globs> committers, List<Globs> paths) {
+		this.refs = refs;
+		this.authors = authors;
+		this.committers = committers;
+		this.paths = paths;
+	}
+
+	/**
+	 * Compiles a filter from space separated patterns.
+	 *
+	 * @param refs
+	 * @param authors
+	 * @param committers
+	 * @param paths
+	 * @return the filter
+	 */
+	public static NotificationFilter compile(List<String> refs, List<String> authors, List<String> committers, List<String> paths) {
+		return new NotificationFilter(Globs.compile(refs, false), Globs.compile(authors, true),
+				Globs.compile(committers, true), Globs.compile(paths, false));
+	}
+
+	/**
+	 * Combines filters, a ref change or commit is posted if it passes all of
+	 * them.
+	 *
+	 * @param filters
+	 * @return the combined filter
+	 */
+	public static NotificationFilter all(List<NotificationFilter> filters) {
+		if (filters.isEmpty()) {
+			return ALL;
+		}
+		if (filters.size() == 1) {
+			return filters.get(0);
+		}
+		List<Globs> refs = new ArrayList<>();
+		List<Globs> authors = new ArrayList<>();
+		List<Globs> committers = new ArrayList<>();
+		List<Globs> paths = new ArrayList<>();
+		for (NotificationFilter filter : filters) {
+			refs.addAll(filter.refs);
+			authors.addAll(filter.authors);
+			committers.addAll(filter.committers);
+			paths.addAll(filter.paths);
+		}
+		return new NotificationFilter(refs, authors, committers, paths);
+	}
+
+	/**
+	 * Returns true if a ref change is posted.
+	 *
+	 * @param change
+	 * @return true if the ref passes the ref patterns
+	 */
+	public boolean includes(RefChange change) {
+		for (Globs globs : refs) {
+			if (!globs.matches(change.getRefName(), change.getShortRef())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the filter drops commits.
+	 */
+	public boolean filtersCommits() {
+		return !authors.isEmpty() || !committers.isEmpty() || !paths.isEmpty();
+	}
+
+	/**
+	 * Returns a new commit filter for a walk.
+	 *
+	 * @return the filter or null if all commits are posted
+	 */
+	public RevFilter newRevFilter() {
+		if (!filtersCommits()) {
+			return null;
+		}
+		return new CommitFilter(authors, committers, paths.isEmpty() ? null : new PathFilter(paths));
+	}
+
+	/**
+	 * Include and exclude patterns of one rule.
+	 */
+	static class Globs {
+
+		final List<Pattern> includes;
+
+		final List<Pattern> excludes;
+
+		Globs(List<Pattern> includes, List<Pattern> excludes) {
+			this.includes = includes;
+			this.excludes = excludes;
+		}
+
+		static List<Globs> compile(List<String> patterns, boolean ignoreCase) {
+			List<Pattern> includes = new ArrayList<>();
+			List<Pattern> excludes = new ArrayList<>();
+			for (String pattern : patterns) {
+				if (pattern.isEmpty()) {
+					continue;
+				}
+				if (pattern.charAt(0) == '!') {
+					excludes.add(toRegex(pattern.substring(1), ignoreCase));
+				} else {
+					includes.add(toRegex(pattern, ignoreCase));
+				}
+			}
+			if (includes.isEmpty() && excludes.isEmpty()) {
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(new Globs(includes, excludes));
+		}
+
+		/**
+		 * Returns true if none of the forms of a value matches an exclude and,
+		 * if there are includes, one of them matches an include.
+		 */
+		boolean matches(String... forms) {
+			for (String value : forms) {
+				if (any(excludes, value)) {
+					return false;
+				}
+			}
+			if (includes.isEmpty()) {
+				return true;
+			}
+			for (String value : forms) {
+				if (any(includes, value)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static boolean any(List<Pattern> patterns, String value) {
+			for (Pattern pattern : patterns) {
+				if (pattern.matcher(value).matches()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static Pattern toRegex(String glob, boolean ignoreCase) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < glob.length(); i++) {
+				char c = glob.charAt(i);
+				if (c == '*' && glob.startsWith("**/", i)) {
+					// zero or more folders
+					sb.append("(?:.*/)?");
+					i += 2;
+				} else if (c == '*' && glob.startsWith("**", i)) {
+					sb.append(".*");
+					i++;
+				} else if (c == '*') {
+					sb.append("[^/]*");
+				} else if (c == '?') {
+					sb.append("[^/]");
+				} else {
+					sb.append(Pattern.quote(String.valueOf(c)));
+				}
+			}
+			return Pattern.compile(sb.toString(), ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
+		}
+	}
+
+	private static boolean matchesAll(List<Globs> rules, PersonIdent ident) {
+		if (rules.isEmpty()) {
+			return true;
+		}
+		String value = ident == null ? "" : ident.getName() + " <" + ident.getEmailAddress() + ">";
+		for (Globs globs : rules) {
+			if (!globs.matches(value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the commits of the walk which are not posted.
+	 */
+	private static class CommitFilter extends RevFilter {
+
+		final List<Globs> authors;
+
+		final List<Globs> committers;
+
+		final PathFilter paths;
+
+		private TreeWalk treeWalk;
+
+		CommitFilter(List<Globs> authors, List<Globs> committers, PathFilter paths) {
+			this.authors = authors;
+			this.committers = committers;
+			this.paths = paths;
+		}
+
+		@Override
+		public boolean include(RevWalk walker, RevCommit c) throws MissingObjectException,
+				IncorrectObjectTypeException, IOException {
+			if (!matchesAll(authors, c.getAuthorIdent()) || !matchesAll(committers, c.getCommitterIdent())) {
+				return false;
+			}
+			return paths == null || changesPaths(walker, c);
+		}
+
+		/**
+		 * Returns true if the commit changes a path which passes the path
+		 * patterns, compared to its first parent.
+		 */
+		private boolean changesPaths(RevWalk walker, RevCommit c) throws IOException {
+			if (treeWalk == null) {
+				// shares the reader of the walk, it is released with the walk
+				treeWalk = new TreeWalk(walker.getObjectReader());
+				treeWalk.setRecursive(true);
+				treeWalk.setFilter(AndTreeFilter.create(TreeFilter.ANY_DIFF, paths));
+			}
+			treeWalk.reset();
+			if (c.getParentCount() > 0) {
+				RevCommit parent = c.getParent(0);
+				walker.parseHeaders(parent);
+				treeWalk.addTree(parent.getTree());
+			} else {
+				treeWalk.addTree(new EmptyTreeIterator());
+			}
+			treeWalk.addTree(c.getTree());
+			return treeWalk.next();
+		}
+
+		@Override
+		public boolean requiresCommitBody() {
+			return !authors.isEmpty() || !committers.isEmpty();
+		}
+
+		@Override
+		public RevFilter clone() {
+			return new CommitFilter(authors, committers, paths);
+		}
+	}
+
+	/**
+	 * Passes the files whose path passes the path patterns.
+	 */
+	private static class PathFilter extends TreeFilter {
+
+		final List<Globs> paths;
+
+		PathFilter(List<Globs> paths) {
+			this.paths = paths;
+		}
+
+		@Override
+		public boolean include(TreeWalk walker) {
+			if (walker.isSubtree()) {
+				// decided per file
+				return true;
+			}
+			String path = walker.getPathString();
+			for (Globs globs : paths) {
+				if (!globs.matches(path)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public boolean shouldBeRecursive() {
+			return true;
+		}
+
+		@Override
+		public TreeFilter clone() {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+/**
+ * What the outbound queue does with a message when it is full.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * The producer waits until the sender has made room.
+	 */
+	BLOCK,
+
+	/**
+	 * The oldest queued message is discarded to make room.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The message is put in an overflow area which is drained after the queue.
+	 */
+	SPILL;
+
+	/**
+	 * Parses a policy setting like "block", "drop-oldest" or "spill".
+	 *
+	 * @param value
+	 * @param defaultPolicy
+	 * @return the policy or the default policy if the value is not recognized
+	 */
+	public static OverflowPolicy fromSetting(String value, OverflowPolicy defaultPolicy) {
+		if (value == null) {
+			return defaultPolicy;
+		}
+		String name = value.trim().replace('-', '_').toUpperCase();
+		for (OverflowPolicy policy : values()) {
+			if (policy.name().equals(name)) {
+				return policy;
+			}
+		}
+		return defaultPolicy;
+	}
+}
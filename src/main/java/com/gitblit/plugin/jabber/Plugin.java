@@ -30,6 +30,22 @@ public class Plugin extends GitblitPlugin {
 
 	public static final String SETTING_PROJECT_ROOM = "jabber.projectRoom.%s";
 
+	public static final String SETTING_ROUTE = "jabber.route.%s";
+
+	public static final String SETTING_ROUTE_PRIORITY_SUFFIX = ".priority";
+
+	public static final String SETTING_FILTER = "jabber.filter.%s";
+
+	public static final String SETTING_FILTER_PRIORITY_SUFFIX = ".priority";
+
+	public static final String SETTING_FILTER_REFS_SUFFIX = ".refs";
+
+	public static final String SETTING_FILTER_AUTHORS_SUFFIX = ".authors";
+
+	public static final String SETTING_FILTER_COMMITTERS_SUFFIX = ".committers";
+
+	public static final String SETTING_FILTER_PATHS_SUFFIX = ".paths";
+
 	public static final String SETTING_POST_PERSONAL_REPOS = "jabber.postPersonalRepos";
 
 	public static final String SETTING_POST_TICKETS = "jabber.postTickets";
@@ -42,6 +58,12 @@ public class Plugin extends GitblitPlugin {
 
 	public static final String SETTING_ACCEPT_ALL_CERTS = "jabber.acceptAllCerts";
 
+	public static final String SETTING_HOST = "jabber.host";
+
+	public static final String SETTING_PORT = "jabber.port";
+
+	public static final String SETTING_SECURITY = "jabber.security";
+
 	public static final String SETTING_POST_TAGS = "jabber.postTags";
 
 	public static final String SETTING_USERNAME = "jabber.username";
@@ -50,6 +72,84 @@ public class Plugin extends GitblitPlugin {
 
 	public static final String SETTING_PASSWORD = "jabber.password";
 
+	public static final String SETTING_PRE_JOIN_ROOMS = "jabber.preJoinRooms";
+
+	public static final String SETTING_CONNECTIONS = "jabber.connections";
+
+	public static final String SETTING_JMX = "jabber.jmx";
+
+	public static final String SETTING_QUEUE_CAPACITY = "jabber.queue.capacity";
+
+	public static final String SETTING_QUEUE_OVERFLOW = "jabber.queue.overflow";
+
+	public static final String SETTING_COALESCE_WINDOW = "jabber.coalesce.window";
+
+	public static final String SETTING_COALESCE_MAX_MESSAGES = "jabber.coalesce.maxMessages";
+
+	public static final String SETTING_RECONNECT_MIN_DELAY = "jabber.reconnect.minDelay";
+
+	public static final String SETTING_RECONNECT_MAX_DELAY = "jabber.reconnect.maxDelay";
+
+	public static final String SETTING_OUTBOX_CAPACITY = "jabber.outbox.capacity";
+
+	public static final String SETTING_ACK_TIMEOUT = "jabber.ack.timeout";
+
+	public static final String SETTING_DRAIN_TIMEOUT = "jabber.drain.timeout";
+
+	public static final String SETTING_RATE_ROOM = "jabber.rateLimit.room";
+
+	public static final String SETTING_RATE_ROOM_BURST = "jabber.rateLimit.roomBurst";
+
+	public static final String SETTING_RATE_GLOBAL = "jabber.rateLimit.global";
+
+	public static final String SETTING_RATE_GLOBAL_BURST = "jabber.rateLimit.globalBurst";
+
+	public static final String SETTING_SPOOL_ENABLED = "jabber.spool.enabled";
+
+	public static final String SETTING_SPOOL_FOLDER = "jabber.spool.folder";
+
+	public static final String SETTING_SPOOL_SEGMENT_SIZE = "jabber.spool.segmentSize";
+
+	public static final String SETTING_RENDER_QUEUE_CAPACITY = "jabber.render.queueCapacity";
+
+	public static final String SETTING_MAX_COMMITS = "jabber.maxCommits";
+
+	public static final String SETTING_COMMIT_COUNT_LIMIT = "jabber.commitCountLimit";
+
+	public static final String SETTING_AGGREGATE_MIN_REFS = "jabber.aggregate.minRefs";
+
+	public static final String SETTING_AGGREGATE_MAX_REFS = "jabber.aggregate.maxRefs";
+
+	public static final String SETTING_DEDUPE_WINDOW = "jabber.dedupe.window";
+
+	public static final String SETTING_DEDUPE_CAPACITY = "jabber.dedupe.capacity";
+
+	public static final String SETTING_DEDUPE_SUPPRESS = "jabber.dedupe.suppress";
+
+	public static final String SETTING_DIGEST_THRESHOLD = "jabber.digest.threshold";
+
+	public static final String SETTING_DIGEST_WINDOW = "jabber.digest.window";
+
+	public static final String SETTING_DIGEST_INTERVAL = "jabber.digest.interval";
+
+	public static final String SETTING_SETTINGS_REFRESH = "jabber.settingsRefresh";
+
+	public static final String SETTING_TEMPLATE_CREATE = "jabber.template.create";
+
+	public static final String SETTING_TEMPLATE_UPDATE = "jabber.template.update";
+
+	public static final String SETTING_TEMPLATE_DELETE = "jabber.template.delete";
+
+	public static final String SETTING_TEMPLATE_COMMIT = "jabber.template.commit";
+
+	public static final String SETTING_TEMPLATE_COMPARE = "jabber.template.compare";
+
+	public static final String SETTING_TEMPLATE_SUMMARY = "jabber.template.summary";
+
+	public static final String SETTING_TEMPLATE_DUPLICATE = "jabber.template.duplicate";
+
+	public static final String SETTING_TEMPLATE_DIGEST = "jabber.template.digest";
+
 	public Plugin(PluginWrapper wrapper) {
 		super(wrapper);
 
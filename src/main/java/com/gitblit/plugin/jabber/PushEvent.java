@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+/**
+ * Immutable snapshot of a push, captured on the receive thread and rendered
+ * into messages by the {@link PushRenderer}.
+ */
+public class PushEvent {
+
+	enum RefType {
+		BRANCH("branches"), TAG("tags");
+
+		/**
+		 * The name of the type as it appears in messages.
+		 */
+		final String label = name().toLowerCase();
+
+		final String plural;
+
+		RefType(String plural) {
+			this.plural = plural;
+		}
+	}
+
+	private final String repository;
+
+	private final String user;
+
+	private final List<RefChange> changes;
+
+	public PushEvent(String repository, String user, List<RefChange> changes) {
+		this.repository = repository;
+		this.user = user;
+		this.changes = Collections.unmodifiableList(new ArrayList<>(changes));
+	}
+
+	/**
+	 * Returns the name of the repository.
+	 */
+	public String getRepository() {
+		return repository;
+	}
+
+	/**
+	 * Returns the display name of the user who pushed.
+	 */
+	public String getUser() {
+		return user;
+	}
+
+	public List<RefChange> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Immutable copy of a {@link ReceiveCommand}.
+	 */
+	public static class RefChange {
+
+		private final String refName;
+
+		private final RefType refType;
+
+		private final ReceiveCommand.Type type;
+
+		private final ObjectId oldId;
+
+		private final ObjectId newId;
+
+		public RefChange(ReceiveCommand cmd, RefType refType) {
+			this.refName = cmd.getRefName();
+			this.refType = refType;
+			this.type = cmd.getType();
+			this.oldId = cmd.getOldId().copy();
+			this.newId = cmd.getNewId().copy();
+		}
+
+		public String getRefName() {
+			return refName;
+		}
+
+		public String getShortRef() {
+			return Repository.shortenRefName(refName);
+		}
+
+		public RefType getRefType() {
+			return refType;
+		}
+
+		public ReceiveCommand.Type getType() {
+			return type;
+		}
+
+		public ObjectId getOldId() {
+			return oldId;
+		}
+
+		public ObjectId getNewId() {
+			return newId;
+		}
+	}
+}
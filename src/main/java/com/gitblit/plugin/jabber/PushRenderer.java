@@ -0,0 +1,650 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.Constants;
+import com.gitblit.manager.IRepositoryManager;
+import com.gitblit.plugin.jabber.DigestScheduler.Digest;
+import com.gitblit.plugin.jabber.MessageTemplate.Var;
+import com.gitblit.plugin.jabber.PushEvent.RefChange;
+import com.gitblit.plugin.jabber.PushEvent.RefType;
+import com.gitblit.servlet.GitblitContext;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Renders {@link PushEvent}s into chat messages on a background thread, so
+ * the pushing client does not wait for commit enumeration and formatting.
+ */
+public class PushRenderer {
+
+	/**
+	 * How often the renderer checks for due digests, in milliseconds.
+	 */
+	private static final long DIGEST_TICK = 5000;
+
+	private static final String XHTML_START = "<body xmlns=\"http://www.w3.org/1999/xhtml\">";
+
+	private static final String XHTML_END = "</body>";
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final Jabber jabber;
+
+	/*
+	 * Message buffers reused across pushes. A renderer renders on its single
+	 * thread, so they are never shared.
+	 */
+	private final String[] values = new String[Var.values().length];
+
+	private final StringBuilder text = new StringBuilder(256);
+
+	private final StringBuilder html = new StringBuilder(1024);
+
+	private final DedupeCache dedupe;
+
+	private final DigestScheduler digests;
+
+	private ThreadPoolExecutor executor;
+
+	private ScheduledExecutorService ticker;
+
+	public PushRenderer(Jabber jabber) {
+		this.jabber = jabber;
+		this.dedupe = new DedupeCache(jabber.getConfig().dedupeCapacity);
+		this.digests = new DigestScheduler();
+	}
+
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		int capacity = jabber.getConfig().renderQueueCapacity;
+		executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, capacity)), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "jabber-render");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		// digests are posted on the render thread, which owns them
+		final ThreadPoolExecutor pool = executor;
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jabber-digest");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ticker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pool.execute(new Runnable() {
+						@Override
+						public void run() {
+							sendDigests(digests.takeDue(System.currentTimeMillis(), jabber.getConfig()));
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// busy or stopping, try again with the next tick
+				}
+			}
+		}, DIGEST_TICK, DIGEST_TICK, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops accepting pushes and renders those which were accepted already.
+	 *
+	 * @param deadline the time in milliseconds at which to give up rendering
+	 * @return the number of pushes which were not rendered
+	 */
+	public synchronized int stop(long deadline) {
+		if (executor == null) {
+			return 0;
+		}
+		ticker.shutdownNow();
+		ticker = null;
+		try {
+			// post the collected pushes now
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					sendDigests(digests.takeAll());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.warn("Jabber render queue is full, pending digests not posted");
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		int skipped = executor.shutdownNow().size();
+		executor = null;
+		return skipped;
+	}
+
+	/**
+	 * Asynchronously renders a push and sends the resulting messages.
+	 *
+	 * @param event
+	 * @return true if the push was accepted for rendering
+	 */
+	public boolean renderAsync(final PushEvent event) {
+		ThreadPoolExecutor pool = executor;
+		if (pool == null) {
+			log.warn("Jabber renderer is not running, push to {} not posted", event.getRepository());
+			return false;
+		}
+		try {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					render(event);
+				}
+			});
+			jabber.getMetrics().increment(Metrics.Counter.PUSHES);
+			return true;
+		} catch (RejectedExecutionException e) {
+			jabber.getMetrics().increment(Metrics.Counter.RENDER_REJECTED);
+			log.warn("Jabber render queue is full, push to {} not posted", event.getRepository());
+			return false;
+		}
+	}
+
+	/**
+	 * Renders a push and sends the resulting messages.
+	 *
+	 * @param event
+	 */
+	public void render(PushEvent event) {
+		IRepositoryManager repositoryManager = GitblitContext.getManager(IRepositoryManager.class);
+		Repository repository = repositoryManager.getRepository(event.getRepository());
+		if (repository == null) {
+			log.warn("Repository {} not found, push not posted", event.getRepository());
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			JabberConfig config = jabber.getConfig();
+			NotificationFilter filter = config.getFilter(event.getRepository());
+			List<RefChange> included = new ArrayList<>();
+			for (RefChange change : event.getChanges()) {
+				if (filter.includes(change)) {
+					included.add(change);
+				}
+			}
+			event = retain(event, included);
+			if (event.getChanges().isEmpty()) {
+				return;
+			}
+
+			Map<RefChange, CommitSummary> commits = null;
+			if (filter.filtersCommits()) {
+				// drop the branch updates without commits to post before anything else
+				commits = getCommits(repository, getUpdates(event), filter);
+				List<RefChange> relevant = new ArrayList<>();
+				for (RefChange change : event.getChanges()) {
+					CommitSummary summary = commits.get(change);
+					if (summary == null || summary.getCount() > 0) {
+						relevant.add(change);
+					}
+				}
+				event = retain(event, relevant);
+				if (event.getChanges().isEmpty()) {
+					return;
+				}
+			}
+
+			Digest digest = null;
+			if (config.digestThreshold > 0) {
+				digest = digests.track(event.getRepository(), System.currentTimeMillis(), config);
+			}
+			if (digest == null && config.aggregateMinRefs > 0 && event.getChanges().size() >= config.aggregateMinRefs) {
+				// one summary instead of a message per ref
+				sendSummary(event);
+				return;
+			}
+
+			if (commits == null) {
+				commits = getCommits(repository, getUpdates(event), filter);
+			}
+
+			if (digest != null) {
+				// posted with the next digest of the repository
+				digest.add(event, commits);
+				jabber.getMetrics().increment(Metrics.Counter.DIGESTED);
+				return;
+			}
+
+			for (RefChange change : event.getChanges()) {
+				switch (change.getType()) {
+				case CREATE:
+					sendCreate(event, change);
+					break;
+				case UPDATE:
+					sendUpdate(event, change, commits.get(change), true);
+					break;
+				case UPDATE_NONFASTFORWARD:
+					sendUpdate(event, change, null, false);
+					break;
+				case DELETE:
+					sendDelete(event, change);
+					break;
+				}
+			}
+		} catch (RuntimeException e) {
+			log.error("Failed to notify Jabber!", e);
+		} finally {
+			repository.close();
+			jabber.getMetrics().record(Metrics.Stage.RENDER, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the fast-forwarded branches of a push, their new commits are
+	 * walked at once.
+	 */
+	private List<RefChange> getUpdates(PushEvent event) {
+		List<RefChange> updates = new ArrayList<>();
+		for (RefChange change : event.getChanges()) {
+			if (change.getType() == ReceiveCommand.Type.UPDATE && change.getRefType() == RefType.BRANCH) {
+				updates.add(change);
+			}
+		}
+		return updates;
+	}
+
+	/**
+	 * Returns a push with only some of its ref changes, counting the others
+	 * as filtered.
+	 */
+	private PushEvent retain(PushEvent event, List<RefChange> changes) {
+		int filtered = event.getChanges().size() - changes.size();
+		if (filtered == 0) {
+			return event;
+		}
+		jabber.getMetrics().add(Metrics.Counter.FILTERED, filtered);
+		return new PushEvent(event.getRepository(), event.getUser(), changes);
+	}
+
+	/**
+	 * Sends a Jabber chat message when a branch or a tag is created.
+	 *
+	 * @param event
+	 * @param change
+	 */
+	protected void sendCreate(PushEvent event, RefChange change) {
+		String repo = event.getRepository();
+		String shortRef = change.getShortRef();
+
+		begin(event, change);
+		set(Var.REF_URL, getUrl(repo, shortRef, null));
+		jabber.getConfig().createTemplate.render(values, text, html);
+
+		jabber.sendAsync(repo, finish());
+	}
+
+	/**
+	 * Sends a Jabber chat message when a branch or a tag has been updated.
+	 *
+	 * @param event
+	 * @param change
+	 * @param commits the new commits of a fast-forwarded branch
+	 * @param isFF
+	 */
+	protected void sendUpdate(PushEvent event, RefChange change, CommitSummary commits, boolean isFF) {
+		JabberConfig config = jabber.getConfig();
+		String repo = event.getRepository();
+		String shortRef = change.getShortRef();
+
+		String action;
+		String url;
+		switch (change.getRefType()) {
+		case TAG:
+			// commit link
+			url = getUrl(repo, null, shortRef);
+			action = "MOVED tag";
+			commits = null;
+			break;
+		default:
+			// log link
+			url = getUrl(repo, shortRef, null);
+			if (isFF && commits != null) {
+				if (commits.getCount() == 1 && !commits.isCapped()) {
+					action = "pushed 1 commit to";
+				} else {
+					action = "pushed " + commits.formatCount(commits.getCount()) + " commits to";
+				}
+			} else {
+				action = "REWRITTEN";
+				commits = null;
+			}
+			break;
+		}
+
+		begin(event, change);
+		set(Var.ACTION, action);
+		set(Var.REF_URL, url);
+		config.updateTemplate.render(values, text, html);
+
+		if (commits != null) {
+			// abbreviated commit list
+			int shortIdLen = config.shortCommitIdLength;
+			text.append('\n');
+			html.append("<br/><ol>");
+			for (CommitSummary.Commit commit : commits.getCommits()) {
+				set(Var.COMMIT_URL, getUrl(repo, null, commit.getId()));
+				set(Var.SHORT_ID, commit.getId().substring(0, shortIdLen));
+				set(Var.MESSAGE, StringUtils.trimString(commit.getShortMessage(), Constants.LEN_SHORTLOG));
+				html.append("<li>");
+				config.commitTemplate.render(values, text, html);
+				text.append('\n');
+				html.append("</li>\n");
+			}
+			html.append("</ol>");
+
+			// compare link
+			if (commits.getCount() > 1) {
+				String compareText;
+				int shown = commits.getCommits().size();
+				if (commits.isCapped()) {
+					// the total, "995+ more" than the listed ones reads oddly
+					compareText = "view comparison of " + commits.formatCount(commits.getCount()) + " commits";
+				} else if (commits.getCount() > shown) {
+					int diff = commits.getCount() - shown;
+					compareText = diff == 1 ? "1 more commit" : diff + " more commits";
+				} else {
+					compareText = "view comparison of these " + commits.getCount() + " commits";
+				}
+				set(Var.COMPARE_URL, getUrl(repo, change.getOldId().getName(), change.getNewId().getName()));
+				set(Var.COMPARE_TEXT, compareText);
+				config.compareTemplate.render(values, text, html);
+			}
+		}
+
+		Message message = finish();
+		if (!isFF) {
+			// rewritten history is news
+			message.priority(Message.Priority.HIGH);
+		}
+		if (commits != null && config.dedupeWindow > 0) {
+			sendDeduplicated(event, change, message);
+		} else {
+			jabber.sendAsync(repo, message);
+		}
+	}
+
+	/**
+	 * Sends the commits of a fast-forwarded branch to the rooms of the
+	 * repository, unless the commits were announced in a room recently, e.g.
+	 * for a fork or a mirror. Those rooms get a short line instead, or
+	 * nothing if duplicates are suppressed.
+	 *
+	 * @param event
+	 * @param change
+	 * @param message the full message
+	 */
+	private void sendDeduplicated(PushEvent event, RefChange change, Message message) {
+		JabberConfig config = jabber.getConfig();
+		String repo = event.getRepository();
+		List<String> rooms = config.getRooms(repo);
+		if (rooms.isEmpty()) {
+			jabber.sendAsync(repo, message);
+			return;
+		}
+
+		String tip = change.getNewId().getName();
+		long now = System.currentTimeMillis();
+		Message duplicate = null;
+		for (String room : rooms) {
+			if (!dedupe.announce(room, tip, now, config.dedupeWindow)) {
+				jabber.sendAsync(message.copy().room(room));
+				continue;
+			}
+			jabber.getMetrics().increment(Metrics.Counter.DEDUPED);
+			if (config.dedupeSuppress) {
+				continue;
+			}
+			if (duplicate == null) {
+				begin(event, change);
+				set(Var.REF_URL, getUrl(repo, change.getShortRef(), null));
+				config.duplicateTemplate.render(values, text, html);
+				duplicate = finish();
+			}
+			jabber.sendAsync(duplicate.copy().room(room));
+		}
+	}
+
+	/**
+	 * Sends a Jabber chat message when a branch or a tag is deleted.
+	 *
+	 * @param event
+	 * @param change
+	 */
+	protected void sendDelete(PushEvent event, RefChange change) {
+		begin(event, change);
+		jabber.getConfig().deleteTemplate.render(values, text, html);
+
+		Message message = finish().priority(Message.Priority.HIGH);
+		jabber.sendAsync(event.getRepository(), message);
+	}
+
+	/**
+	 * Sends one Jabber chat message which summarizes all ref changes of a
+	 * push, grouped by type.
+	 *
+	 * @param event
+	 */
+	protected void sendSummary(PushEvent event) {
+		JabberConfig config = jabber.getConfig();
+		PushSummary summary = new PushSummary(event.getChanges());
+
+		begin(event, null);
+		set(Var.SUMMARY, summary.describe(config.aggregateMaxRefs));
+		config.summaryTemplate.render(values, text, html);
+
+		Message message = finish();
+		if (summary.isImportant()) {
+			message.priority(Message.Priority.HIGH);
+		}
+		jabber.sendAsync(event.getRepository(), message);
+	}
+
+	/**
+	 * Sends a Jabber chat message for each digest of the pushes to a busy
+	 * repository.
+	 *
+	 * @param due
+	 */
+	protected void sendDigests(List<Digest> due) {
+		JabberConfig config = jabber.getConfig();
+		for (Digest digest : due) {
+			try {
+				String repo = digest.getRepository();
+				begin(repo, digest.getAuthors(), null);
+				set(Var.SUMMARY, digest.describe(config.aggregateMaxRefs));
+				config.digestTemplate.render(values, text, html);
+
+				Message message = finish();
+				if (digest.isImportant()) {
+					message.priority(Message.Priority.HIGH);
+				}
+				jabber.sendAsync(repo, message);
+			} catch (RuntimeException e) {
+				log.error("Failed to notify Jabber!", e);
+			}
+		}
+	}
+
+	private void begin(PushEvent event, RefChange change) {
+		begin(event.getRepository(), event.getUser(), change);
+	}
+
+	/**
+	 * Clears the reused buffers and sets the variables common to all
+	 * messages of a push and, if given, of a ref change.
+	 */
+	private void begin(String repo, String user, RefChange change) {
+		Arrays.fill(values, null);
+		text.setLength(0);
+		html.setLength(0);
+		html.append(XHTML_START);
+
+		set(Var.USER, user);
+		if (change != null) {
+			set(Var.REF, change.getShortRef());
+			set(Var.REF_TYPE, change.getRefType().label);
+		}
+		set(Var.REPO, StringUtils.stripDotGit(repo));
+		set(Var.REPO_URL, getUrl(repo, null, null));
+	}
+
+	private void set(Var var, String value) {
+		values[var.ordinal()] = value;
+	}
+
+	private Message finish() {
+		html.append(XHTML_END);
+		return Message.create(text.toString(), html.toString());
+	}
+
+	/**
+	 * Returns a link appropriate for the push.
+	 *
+	 * If both new and old ids are null, the summary page link is returned.
+	 *
+	 * @param repo
+	 * @param oldId
+	 * @param newId
+	 * @return a link
+	 */
+	protected String getUrl(String repo, String oldId, String newId) {
+		StringBuilder sb = new StringBuilder(128).append(jabber.getConfig().canonicalUrl);
+
+		if (oldId == null && newId != null) {
+			// create
+			sb.append("/commit?r=").append(repo).append("&h=").append(newId);
+		} else if (oldId != null && newId == null) {
+			// log
+			sb.append("/log?r=").append(repo).append("&h=").append(oldId);
+		} else if (oldId != null && newId != null) {
+			// update/compare
+			sb.append("/compare?r=").append(repo).append("&h=").append(oldId).append("..").append(newId);
+		} else {
+			// summary page
+			sb.append("/summary?r=").append(repo);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Walks the new commits of several fast-forwarded branches, keeping only
+	 * the first few commits of each branch for display and counting the rest
+	 * up to a limit.
+	 *
+	 * Each branch reports the commits between its own old and new tip, like
+	 * a separate "old..new" walk. The branches share one RevWalk which is
+	 * reset between them, so a commit shared by several branches is read and
+	 * parsed once and reused for every message.
+	 *
+	 * The walk streams in commit time order and does not retain the bodies
+	 * of commits which are only counted, so memory stays flat for huge
+	 * pushes. Commits dropped by the notification filter are skipped by the
+	 * walk and neither listed nor counted.
+	 *
+	 * @param repository
+	 * @param updates
+	 * @param filter
+	 * @return the commit summary of each update
+	 */
+	private Map<RefChange, CommitSummary> getCommits(Repository repository, List<RefChange> updates, NotificationFilter filter) {
+		int maxCommits = jabber.getConfig().maxCommits;
+		int countLimit = jabber.getConfig().commitCountLimit;
+		Map<RefChange, CommitSummary> summaries = new HashMap<>();
+		RevWalk walk = new RevWalk(repository);
+		try {
+			RevFilter commitFilter = filter.newRevFilter();
+			if (commitFilter != null) {
+				walk.setRevFilter(commitFilter);
+			}
+			for (RefChange change : updates) {
+				CommitSummary summary = new CommitSummary(maxCommits, countLimit);
+				summaries.put(change, summary);
+				walkCommits(walk, change, summary);
+			}
+		} catch (IOException e) {
+			// Should never happen, the core receive process would have
+			// identified the missing object earlier before we got control.
+			log.error("failed to get commits", e);
+		} finally {
+			walk.release();
+		}
+		return summaries;
+	}
+
+	private void walkCommits(RevWalk walk, RefChange change, CommitSummary summary) throws IOException {
+		walk.reset();
+		walk.setRetainBody(true);
+		walk.markStart(walk.parseCommit(change.getNewId()));
+		walk.markUninteresting(walk.parseCommit(change.getOldId()));
+		for (;;) {
+			RevCommit c = walk.next();
+			if (c == null) {
+				break;
+			}
+			if (!summary.isFull() && c.getRawBuffer() == null) {
+				// the body was dropped while counting an earlier branch
+				walk.parseBody(c);
+			}
+			if (!summary.add(c)) {
+				// reached the count limit
+				break;
+			}
+			if (summary.isFull() && walk.isRetainBody()) {
+				walk.setRetainBody(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.gitblit.plugin.jabber.PushEvent.RefChange;
+import com.gitblit.plugin.jabber.PushEvent.RefType;
+
+/**
+ * Describes the ref changes of one or more pushes in one line, grouped by
+ * what happened to them, e.g. "created 300 tags (v1.0, v1.1, ... v3.9),
+ * updated 2 branches (master, develop)". A ref changed several times the
+ * same way is counted once.
+ */
+public class PushSummary {
+
+	/**
+	 * What happened to a ref, in the order of the summary.
+	 */
+	enum Action {
+		CREATED("created"), UPDATED("updated"), REWRITTEN("rewritten"), MOVED("moved"), DELETED("deleted");
+
+		final String label;
+
+		Action(String label) {
+			this.label = label;
+		}
+
+		static Action of(RefChange change) {
+			switch (change.getType()) {
+			case CREATE:
+				return CREATED;
+			case DELETE:
+				return DELETED;
+			case UPDATE_NONFASTFORWARD:
+				return change.getRefType() == RefType.TAG ? MOVED : REWRITTEN;
+			default:
+				return change.getRefType() == RefType.TAG ? MOVED : UPDATED;
+			}
+		}
+	}
+
+	private final List<Set<String>> groups;
+
+	private boolean important;
+
+	public PushSummary() {
+		int size = Action.values().length * RefType.values().length;
+		groups = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			groups.add(new LinkedHashSet<String>());
+		}
+	}
+
+	/**
+	 * Groups the ref changes of a push.
+	 *
+	 * @param changes
+	 */
+	public PushSummary(List<RefChange> changes) {
+		this();
+		for (RefChange change : changes) {
+			add(change);
+		}
+	}
+
+	/**
+	 * Adds a ref change to its group.
+	 *
+	 * @param change
+	 */
+	public void add(RefChange change) {
+		Action action = Action.of(change);
+		groups.get(index(action, change.getRefType())).add(change.getShortRef());
+		important |= action == Action.DELETED || action == Action.REWRITTEN;
+	}
+
+	/**
+	 * Returns true if refs were deleted or rewritten, which is news.
+	 */
+	public boolean isImportant() {
+		return important;
+	}
+
+	/**
+	 * Describes the push.
+	 *
+	 * @param maxRefs the number of refs to list per group, at most
+	 * @return the description
+	 */
+	public String describe(int maxRefs) {
+		StringBuilder sb = new StringBuilder();
+		for (Action action : Action.values()) {
+			boolean first = true;
+			for (RefType type : RefType.values()) {
+				Set<String> refs = groups.get(index(action, type));
+				if (refs.isEmpty()) {
+					continue;
+				}
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				if (first) {
+					sb.append(action.label).append(' ');
+					first = false;
+				}
+				sb.append(refs.size()).append(' ').append(refs.size() == 1 ? type.label : type.plural);
+				list(refs, maxRefs, sb);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Lists the first refs and the last one.
+	 */
+	private static void list(Set<String> refs, int maxRefs, StringBuilder sb) {
+		if (maxRefs <= 0) {
+			return;
+		}
+		sb.append(" (");
+		Iterator<String> itr = refs.iterator();
+		if (refs.size() <= maxRefs) {
+			sb.append(itr.next());
+			while (itr.hasNext()) {
+				sb.append(", ").append(itr.next());
+			}
+		} else {
+			for (int i = 0; i < maxRefs - 1; i++) {
+				sb.append(itr.next()).append(", ");
+			}
+			String last = null;
+			while (itr.hasNext()) {
+				last = itr.next();
+			}
+			sb.append("\u2026 ").append(last);
+		}
+		sb.append(')');
+	}
+
+	private static int index(Action action, RefType type) {
+		return action.ordinal() * RefType.values().length + type.ordinal();
+	}
+}
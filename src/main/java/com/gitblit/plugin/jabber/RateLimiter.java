@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gitblit.plugin.jabber.Message.Priority;
+
+/**
+ * Schedules messages within a global and a per-room token bucket, so the
+ * plugin does not post faster than the server allows.
+ *
+ * Each room has a lane per priority. High priority messages of any room are
+ * sent before normal ones and messages over the budget wait for tokens,
+ * they are never dropped. Rooms take turns so one busy room does not starve
+ * the others.
+ *
+ * This class is not thread-safe, it is owned by the {@link MessageSender}.
+ */
+public class RateLimiter {
+
+	private final double roomRate;
+
+	private final int roomBurst;
+
+	private final TokenBucket global;
+
+	private final LinkedHashMap<String, Room> rooms;
+
+	private int size;
+
+	/**
+	 * @param roomRate messages per second per room, 0 for no limit
+	 * @param roomBurst messages a room may send at once
+	 * @param globalRate messages per second for all rooms, 0 for no limit
+	 * @param globalBurst messages all rooms may send at once
+	 */
+	public RateLimiter(double roomRate, int roomBurst, double globalRate, int globalBurst) {
+		this.roomRate = roomRate;
+		this.roomBurst = roomBurst;
+		this.global = new TokenBucket(globalRate, globalBurst);
+		this.rooms = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Adds a message to the lane of its room and priority.
+	 *
+	 * @param room
+	 * @param message
+	 * @return true if the message may be sent now, false if it is deferred
+	 */
+	public boolean add(String room, Message message) {
+		Room r = rooms.get(room);
+		if (r == null) {
+			r = new Room(new TokenBucket(roomRate, roomBurst));
+			rooms.put(room, r);
+		}
+		long now = System.currentTimeMillis();
+		boolean ready = r.isEmpty() && r.bucket.hasToken(now) && global.hasToken(now) && size < global.available();
+		if (message.getPriority() == Priority.HIGH) {
+			r.high.addLast(message);
+		} else {
+			r.normal.addLast(message);
+		}
+		size++;
+		return ready;
+	}
+
+	/**
+	 * Removes the next message which may be sent now.
+	 *
+	 * @param now
+	 * @return the message or null if none is within the budget
+	 */
+	public Message poll(long now) {
+		if (size == 0 || !global.hasToken(now)) {
+			return null;
+		}
+		Message message = poll(now, true);
+		if (message == null) {
+			message = poll(now, false);
+		}
+		if (message != null) {
+			global.take();
+			size--;
+		}
+		return message;
+	}
+
+	private Message poll(long now, boolean high) {
+		Iterator<Map.Entry<String, Room>> itr = rooms.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<String, Room> entry = itr.next();
+			Room room = entry.getValue();
+			ArrayDeque<Message> lane = high ? room.high : room.normal;
+			if (lane.isEmpty() || !room.bucket.hasToken(now)) {
+				continue;
+			}
+			room.bucket.take();
+			Message message = lane.pollFirst();
+
+			// the room goes to the back of the line
+			itr.remove();
+			if (!room.isEmpty() || !room.bucket.isFull(now)) {
+				rooms.put(entry.getKey(), room);
+			}
+			return message;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the time at which a message may be sent next.
+	 *
+	 * @param now
+	 * @return the time or Long.MAX_VALUE if there are no messages
+	 */
+	public long nextReady(long now) {
+		if (size == 0) {
+			return Long.MAX_VALUE;
+		}
+		long ready = Long.MAX_VALUE;
+		for (Room room : rooms.values()) {
+			if (!room.isEmpty()) {
+				ready = Math.min(ready, room.bucket.nextToken(now));
+			}
+		}
+		return Math.max(ready, global.nextToken(now));
+	}
+
+	/**
+	 * Returns the number of deferred messages.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Removes all deferred messages regardless of the budget, high priority
+	 * messages first.
+	 *
+	 * @return the messages
+	 */
+	public List<Message> drainAll() {
+		List<Message> all = new ArrayList<>(size);
+		for (Room room : rooms.values()) {
+			all.addAll(room.high);
+		}
+		for (Room room : rooms.values()) {
+			all.addAll(room.normal);
+		}
+		rooms.clear();
+		size = 0;
+		return all;
+	}
+
+	private static class Room {
+
+		final TokenBucket bucket;
+
+		final ArrayDeque<Message> high = new ArrayDeque<>();
+
+		final ArrayDeque<Message> normal = new ArrayDeque<>();
+
+		Room(TokenBucket bucket) {
+			this.bucket = bucket;
+		}
+
+		boolean isEmpty() {
+			return high.isEmpty() && normal.isEmpty();
+		}
+	}
+
+	/**
+	 * Classic token bucket which refills continuously at a fixed rate.
+	 */
+	private static class TokenBucket {
+
+		final double rate;
+
+		final double capacity;
+
+		double tokens;
+
+		long updated;
+
+		TokenBucket(double rate, int burst) {
+			this.rate = rate;
+			this.capacity = Math.max(1, burst);
+			this.tokens = capacity;
+			this.updated = System.currentTimeMillis();
+		}
+
+		boolean hasToken(long now) {
+			refill(now);
+			return rate <= 0 || tokens >= 1;
+		}
+
+		/**
+		 * Returns the number of whole tokens after the last refill.
+		 */
+		double available() {
+			return rate <= 0 ? Double.MAX_VALUE : Math.floor(tokens);
+		}
+
+		boolean isFull(long now) {
+			refill(now);
+			return rate <= 0 || tokens >= capacity;
+		}
+
+		void take() {
+			if (rate > 0) {
+				tokens -= 1;
+			}
+		}
+
+		long nextToken(long now) {
+			if (hasToken(now)) {
+				return now;
+			}
+			return now + (long) Math.ceil((1 - tokens) * 1000 / rate);
+		}
+
+		private void refill(long now) {
+			if (now > updated) {
+				tokens = Math.min(capacity, tokens + (now - updated) * rate / 1000);
+				updated = now;
+			}
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smackx.muc.DefaultUserStatusListener;
+import org.jivesoftware.smackx.muc.DiscussionHistory;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-safe registry of the chat rooms of a connection.
+ *
+ * Rooms are joined lazily on first use. Concurrent requests for a room that
+ * is not joined yet result in a single join, while lookups of joined rooms
+ * do not lock.
+ */
+public class RoomRegistry {
+
+	enum State {
+		NEW, JOINED, LEFT, FAILED
+	}
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final XMPPConnection conn;
+
+	private final String nickname;
+
+	private final ConcurrentMap<String, Room> rooms;
+
+	public RoomRegistry(XMPPConnection conn, String nickname) {
+		this.conn = conn;
+		this.nickname = nickname;
+		this.rooms = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Returns the chat of a room, joining the room if necessary.
+	 *
+	 * @param name
+	 * @return the joined chat
+	 * @throws SmackException
+	 * @throws XMPPException
+	 */
+	public MultiUserChat join(String name) throws SmackException, XMPPException {
+		Room room = rooms.get(name);
+		if (room == null) {
+			Room newRoom = new Room(name);
+			room = rooms.putIfAbsent(name, newRoom);
+			if (room == null) {
+				room = newRoom;
+			}
+		}
+		if (room.state == State.JOINED) {
+			return room.chat;
+		}
+		return room.join();
+	}
+
+	/**
+	 * Returns the state of a room.
+	 *
+	 * @param name
+	 * @return the state or null if the room is unknown
+	 */
+	public State getState(String name) {
+		Room room = rooms.get(name);
+		return room == null ? null : room.state;
+	}
+
+	/**
+	 * Returns the names of all known rooms.
+	 *
+	 * @return the room names
+	 */
+	public List<String> getRooms() {
+		return new ArrayList<>(rooms.keySet());
+	}
+
+	/**
+	 * Leaves all joined rooms.
+	 */
+	public void leaveAll() {
+		for (Room room : rooms.values()) {
+			room.leave();
+		}
+	}
+
+	private class Room {
+
+		final String name;
+
+		volatile State state;
+
+		volatile MultiUserChat chat;
+
+		Room(String name) {
+			this.name = name;
+			this.state = State.NEW;
+		}
+
+		synchronized MultiUserChat join() throws SmackException, XMPPException {
+			if (state == State.JOINED) {
+				// joined by a concurrent caller
+				return chat;
+			}
+			if (chat == null) {
+				chat = new MultiUserChat(conn, name);
+				chat.addUserStatusListener(new DefaultUserStatusListener() {
+					@Override
+					public void kicked(String actor, String reason) {
+						log.warn("Kicked from {} by {}: {}", name, actor, reason);
+						state = State.LEFT;
+					}
+
+					@Override
+					public void banned(String actor, String reason) {
+						log.warn("Banned from {} by {}: {}", name, actor, reason);
+						state = State.LEFT;
+					}
+				});
+			}
+			try {
+				// the plugin only posts, the room history is not needed;
+				// like createOrJoin(), entering a missing room creates it
+				DiscussionHistory history = new DiscussionHistory();
+				history.setMaxStanzas(0);
+				chat.join(nickname, null, history, conn.getPacketReplyTimeout());
+				state = State.JOINED;
+				log.info("Joined room " + name);
+				return chat;
+			} catch (SmackException | XMPPException e) {
+				state = State.FAILED;
+				throw e;
+			}
+		}
+
+		synchronized void leave() {
+			if (state != State.JOINED) {
+				return;
+			}
+			try {
+				chat.leave();
+			} catch (SmackException e) {
+				log.warn("Failed to leave room " + name, e);
+			}
+			state = State.LEFT;
+		}
+	}
+}
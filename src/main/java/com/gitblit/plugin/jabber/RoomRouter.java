@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Routes repositories to chat rooms by glob rules.
+ *
+ * Rules match the repository name without the .git suffix, segment by
+ * segment: '*' and '?' match within a segment and '**' matches any number of
+ * segments, so "team-a/*" matches the repositories of a project folder and
+ * "mirrors/**" everything below it. Of all matching rules, those with the
+ * highest priority win and their rooms are combined.
+ *
+ * The rules are compiled into a trie of path segments and the rooms of each
+ * repository are cached, so routing does not depend on the number of rules
+ * once a repository has been seen.
+ */
+public class RoomRouter {
+
+	private static final int MAX_CACHED = 10000;
+
+	private final Node root;
+
+	private final List<String> defaultRooms;
+
+	private final ConcurrentMap<String, List<String>> cache;
+
+	private RoomRouter(Node root, String defaultRoom) {
+		this.root = root;
+		this.defaultRooms = defaultRoom == null ? Collections.<String>emptyList() : Collections.singletonList(defaultRoom);
+		this.cache = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Returns the rooms of a repository.
+	 *
+	 * @param repository
+	 * @return the rooms of the winning rules or the default room
+	 */
+	public List<String> route(String repository) {
+		List<String> rooms = cache.get(repository);
+		if (rooms == null) {
+			rooms = resolve(repository);
+			if (cache.size() >= MAX_CACHED) {
+				cache.clear();
+			}
+			cache.put(repository, rooms);
+		}
+		return rooms;
+	}
+
+	/**
+	 * Returns the rooms of repositories which are not routed.
+	 *
+	 * @return the default room
+	 */
+	public List<String> getDefaultRooms() {
+		return defaultRooms;
+	}
+
+	private List<String> resolve(String repository) {
+		String name = repository;
+		if (name.endsWith(".git")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		List<Rule> matches = new ArrayList<>();
+		root.match(name.split("/"), 0, matches);
+		if (matches.isEmpty()) {
+			return defaultRooms;
+		}
+
+		int priority = Integer.MIN_VALUE;
+		for (Rule rule : matches) {
+			priority = Math.max(priority, rule.priority);
+		}
+		Set<String> rooms = new LinkedHashSet<>();
+		for (Rule rule : matches) {
+			if (rule.priority == priority) {
+				rooms.addAll(rule.rooms);
+			}
+		}
+		return Collections.unmodifiableList(new ArrayList<>(rooms));
+	}
+
+	/**
+	 * Collects rules and compiles them into a router.
+	 */
+	public static class Builder {
+
+		private final Node root = new Node();
+
+		/**
+		 * Adds a rule.
+		 *
+		 * @param pattern a glob like "team-a/*" or "mirrors/**"
+		 * @param priority rules with a higher priority win
+		 * @param rooms
+		 * @return this builder
+		 */
+		public Builder add(String pattern, int priority, List<String> rooms) {
+			String glob = pattern.trim();
+			if (glob.endsWith(".git")) {
+				glob = glob.substring(0, glob.length() - 4);
+			}
+			if (glob.endsWith("/")) {
+				// a folder prefix
+				glob += "**";
+			}
+			Node node = root;
+			for (String segment : glob.split("/")) {
+				node = node.child(segment);
+			}
+			node.rules.add(new Rule(priority, rooms));
+			return this;
+		}
+
+		public RoomRouter build(String defaultRoom) {
+			return new RoomRouter(root, defaultRoom);
+		}
+	}
+
+	private static class Rule {
+
+		final int priority;
+
+		final List<String> rooms;
+
+		Rule(int priority, List<String> rooms) {
+			this.priority = priority;
+			this.rooms = Collections.unmodifiableList(new ArrayList<>(rooms));
+		}
+	}
+
+	/**
+	 * A segment of the trie. Literal segments are looked up by hash, wildcard
+	 * segments are tried one by one.
+	 */
+	private static class Node {
+
+		final Map<String, Node> literals = new HashMap<>();
+
+		final Map<String, Node> wildcards = new HashMap<>();
+
+		Node anyPath;
+
+		final List<Rule> rules = new ArrayList<>();
+
+		Node child(String segment) {
+			if ("**".equals(segment)) {
+				if (anyPath == null) {
+					anyPath = new Node();
+				}
+				return anyPath;
+			}
+			Map<String, Node> children = isWildcard(segment) ? wildcards : literals;
+			Node child = children.get(segment);
+			if (child == null) {
+				child = new Node();
+				children.put(segment, child);
+			}
+			return child;
+		}
+
+		void match(String[] segments, int index, List<Rule> matches) {
+			if (anyPath != null) {
+				// '**' swallows zero or more segments
+				for (int i = index; i <= segments.length; i++) {
+					anyPath.match(segments, i, matches);
+				}
+			}
+			if (index == segments.length) {
+				for (Rule rule : rules) {
+					if (!matches.contains(rule)) {
+						matches.add(rule);
+					}
+				}
+				return;
+			}
+			String segment = segments[index];
+			Node literal = literals.get(segment);
+			if (literal != null) {
+				literal.match(segments, index + 1, matches);
+			}
+			for (Map.Entry<String, Node> entry : wildcards.entrySet()) {
+				if (glob(entry.getKey(), 0, segment, 0)) {
+					entry.getValue().match(segments, index + 1, matches);
+				}
+			}
+		}
+	}
+
+	private static boolean isWildcard(String segment) {
+		return segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0;
+	}
+
+	/**
+	 * Matches a segment against a glob with '*' and '?'.
+	 */
+	private static boolean glob(String pattern, int p, String text, int t) {
+		while (p < pattern.length()) {
+			char c = pattern.charAt(p);
+			if (c == '*') {
+				for (int i = t; i <= text.length(); i++) {
+					if (glob(pattern, p + 1, text, i)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			if (t >= text.length() || (c != '?' && c != text.charAt(t))) {
+				return false;
+			}
+			p++;
+			t++;
+		}
+		return t == text.length();
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Stops and starts the plugin against a {@link StandInServer} and checks
+ * that the messages persisted to the spool on stop are sent after the start.
+ */
+public class JabberRestartTest {
+
+	private static final int MESSAGES = 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSpooledMessagesAreSentAfterRestart() throws Exception {
+		try (StandInServer server = new StandInServer("standin.local").start()) {
+			server.setRefuseLogins(true);
+
+			Map<String, String> settings = BenchmarkSupport.settings();
+			settings.put(Plugin.SETTING_DOMAIN, server.getDomain());
+			settings.put(Plugin.SETTING_HOST, "127.0.0.1");
+			settings.put(Plugin.SETTING_PORT, String.valueOf(server.getPort()));
+			settings.put(Plugin.SETTING_SECURITY, "disabled");
+			settings.put(Plugin.SETTING_USERNAME, "gitblit");
+			settings.put(Plugin.SETTING_PASSWORD, "secret");
+			settings.put(Plugin.SETTING_DEFAULT_ROOM, "room@conference." + server.getDomain());
+			settings.put(Plugin.SETTING_QUEUE_OVERFLOW, "block");
+			settings.put(Plugin.SETTING_SPOOL_ENABLED, "true");
+			settings.put(Plugin.SETTING_SPOOL_FOLDER, folder.getRoot().getPath());
+			settings.put(Plugin.SETTING_DRAIN_TIMEOUT, "5000");
+			settings.put(Plugin.SETTING_RECONNECT_MIN_DELAY, "100");
+			Jabber jabber = BenchmarkSupport.newJabber(settings);
+
+			// nothing can be sent, so stopping persists everything
+			jabber.start();
+			for (int i = 0; i < MESSAGES; i++) {
+				jabber.sendAsync(Message.text("message " + i));
+			}
+			// held one by one in the outbox, not merged by the drain
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (jabber.getQueueDepth() > 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			jabber.stop();
+			assertEquals(MESSAGES, jabber.spool.size());
+
+			server.setRefuseLogins(false);
+			jabber.start();
+			try {
+				assertTrue("spooled messages were not sent", server.awaitDistinctMessages(MESSAGES, 30, TimeUnit.SECONDS));
+			} finally {
+				jabber.stop();
+			}
+			assertEquals(0, jabber.spool.size());
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Michael Legart.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.jabber;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.junit.Test;
+
+import com.gitblit.plugin.jabber.PushEvent.RefChange;
+import com.gitblit.plugin.jabber.PushEvent.RefType;
+
+/**
+ * The ref rules of {@link NotificationFilter}, with patterns written against
+ * the full and the short ref name.
+ */
+public class NotificationFilterTest {
+
+	private static final ObjectId ID = ObjectId.fromString("0123456789abcdef0123456789abcdef01234567");
+
+	@Test
+	public void testIncludeOnly() {
+		for (String pattern : Arrays.asList("release/*", "refs/heads/release/*")) {
+			NotificationFilter filter = refs(pattern);
+			assertTrue(pattern, filter.includes(branch("release/1.0")));
+			assertFalse(pattern, filter.includes(branch("master")));
+			assertFalse(pattern, filter.includes(branch("wip/release/1.0")));
+		}
+	}
+
+	@Test
+	public void testExcludeOnly() {
+		for (String pattern : Arrays.asList("!wip/*", "!refs/heads/wip/*")) {
+			NotificationFilter filter = refs(pattern);
+			assertFalse(pattern, filter.includes(branch("wip/x")));
+			assertTrue(pattern, filter.includes(branch("master")));
+			assertTrue(pattern, filter.includes(branch("feature/wip")));
+		}
+	}
+
+	@Test
+	public void testIncludeAndExclude() {
+		for (String patterns : Arrays.asList("** !wip/*", "refs/heads/** !refs/heads/wip/*",
+				"refs/heads/** !wip/*", "** !refs/heads/wip/*")) {
+			NotificationFilter filter = refs(patterns.split(" "));
+			assertTrue(patterns, filter.includes(branch("master")));
+			assertTrue(patterns, filter.includes(branch("feature/x")));
+			assertFalse(patterns, filter.includes(branch("wip/x")));
+		}
+		NotificationFilter branches = refs("refs/heads/**", "!wip/*");
+		assertFalse(branches.includes(tag("v1.0")));
+	}
+
+	@Test
+	public void testNoPatterns() {
+		NotificationFilter filter = refs();
+		assertTrue(filter.includes(branch("wip/x")));
+		assertTrue(filter.includes(tag("v1.0")));
+	}
+
+	private static NotificationFilter refs(String... patterns) {
+		List<String> none = Collections.emptyList();
+		return NotificationFilter.compile(Arrays.asList(patterns), none, none, none);
+	}
+
+	private static RefChange branch(String name) {
+		return new RefChange(new ReceiveCommand(ObjectId.zeroId(), ID, "refs/heads/" + name), RefType.BRANCH);
+	}
+
+	private static RefChange tag(String name) {
+		return new RefChange(new ReceiveCommand(ObjectId.zeroId(), ID, "refs/tags/" + name), RefType.TAG);
+	}
+}